@@ -10,17 +10,29 @@
 package tk.kahsolt.akasha;
 
 import org.apache.log4j.Logger;
+import tk.kahsolt.akasha.db.ColumnReader;
 import tk.kahsolt.akasha.db.SQLEngine;
 import tk.kahsolt.akasha.db.MySQLEngine;
 import tk.kahsolt.akasha.db.SQLiteEngine;
+import tk.kahsolt.akasha.db.Transaction;
 import tk.kahsolt.akasha.model.*;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class Akasha {
 
@@ -29,21 +41,74 @@ public final class Akasha {
     private String dbUri;
     private SQLEngine dbEngine;
     private ArrayList<Class<? extends Model>> modelList = new ArrayList<>();
+    private HashMap<Class<? extends Model>, ModelMapper<?>> mappers = new HashMap<>();
+    private long flushInterval;     // 写回模式的刷出周期(ms)，0为直接写库
+    private int flushCapacity;
+    private Flusher flusher;
+    private ExecutorService executor;   // 异步写库用，由Akasha持有并在stop()时关闭
+    private int poolSize;               // 连接池大小，0为按引擎默认
+    private File snapshotFile;          // 缓存快照文件，null为不启用
+    private long refreshInterval;       // 定期增量刷新缓存的周期(ms)，0为不刷新
+    private ScheduledExecutorService refresher;
+    private Map<Class<? extends Model>, Manager> managers;
 
     public Akasha() { }
     public Akasha(String dbUri) { this.dbUri = dbUri; }
 
+    /*
+     *  写回模式：save()/remove()只更新缓存，由后台线程每interval毫秒合并写库一次
+     *    待写模型数达到capacity时save()/remove()阻塞；须在start()之前调用
+     */
+    public void enableWriteBehind() { enableWriteBehind(1000, 10000); }
+    public void enableWriteBehind(long interval, int capacity) {
+        flushInterval = Math.max(1, interval);
+        flushCapacity = Math.max(2, capacity);
+    }
+    /*
+     *  缓存快照：stop()时把各模型缓存写入二进制文件，下次start()时从中载入，只向库查询此后改动的行
+     *    须在start()之前调用；库地址、表结构或模型字段有变时自动退回整表模型化
+     */
+    public void enableSnapshot() { enableSnapshot(System.getProperty("user.dir") + System.getProperty("file.separator") + "akasha.snapshot"); }
+    public void enableSnapshot(String path) { snapshotFile = new File(path); }
+    /*
+     *  定期刷新：后台线程每interval毫秒对各模型调用Manager.refresh()，合入其他进程对同一库的改动
+     *    须在start()之前调用；也可不启用而在需要时手动调用refresh()
+     */
+    public void enableRefresh(long interval) { refreshInterval = Math.max(1, interval); }
+    public void setPoolSize(int poolSize) { this.poolSize = poolSize; }   // 须在start()之前调用
+    public void setExecutor(ExecutorService executor) { this.executor = executor; }   // 须在start()之前调用，默认为单线程
     public void register(Class<? extends Model> clazz) {
         modelList.add(clazz);
+        // 优先使用ModelProcessor在编译期生成的映射器，没有则在start()时退回到反射
+        try {
+            Class<?> generated = Class.forName(clazz.getName() + "_Mapper", true, clazz.getClassLoader());
+            mappers.put(clazz, (ModelMapper<?>) generated.getDeclaredConstructor().newInstance());
+            logger.info(String.format("Using generated mapper for model '%s'.", clazz.getSimpleName()));
+        } catch (ClassNotFoundException ignored) {
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            e.printStackTrace();
+            logger.warn(String.format("Bad generated mapper for model '%s', using the reflective mapper instead.", clazz.getSimpleName()));
+        }
     }
     public void start() {
         dbEngine = dbUri==null ? new SQLiteEngine() :
                 dbUri.startsWith("jdbc:mysql") ? new MySQLEngine(dbUri) : new SQLiteEngine(dbUri);
+        if(poolSize>0) dbEngine.setPoolSize(poolSize);
         dbEngine.connect();
+        ArrayList<String> tables = new ArrayList<>();
+        for (Class<? extends Model> clazz : modelList) tables.add(clazz.getSimpleName());
+        dbEngine.fetchMetadata(tables);     // 只查已注册模型的表
+
+        if(executor==null) executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Akasha-Async");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        HashMap<Class<? extends Model>, Manager> managers = new HashMap<>();
-        HashMap<Class<? extends Model>, HashSet<? extends Model>> collections = new HashMap<>();
+        managers = new ConcurrentHashMap<>();
+        ConcurrentHashMap<Class<? extends Model>, Collection<? extends Model>> collections = new ConcurrentHashMap<>();
         HashMap<Class<? extends Model>, ArrayList<Field>> fieldsets = new HashMap<>();
+        HashMap<Class<? extends Model>, Accessor[]> accessors = new HashMap<>();
         try {
             Field field = Model.class.getDeclaredField("dbEngine");
             field.setAccessible(true); field.set(null, dbEngine);
@@ -53,35 +118,182 @@ public final class Akasha {
             field.setAccessible(true); field.set(null, collections);
             field = Model.class.getDeclaredField("fieldsets");
             field.setAccessible(true); field.set(null, fieldsets);
+            field = Model.class.getDeclaredField("accessors");
+            field.setAccessible(true); field.set(null, accessors);
+            field = Model.class.getDeclaredField("mappers");
+            field.setAccessible(true); field.set(null, mappers);
+            field = Model.class.getDeclaredField("executor");
+            field.setAccessible(true); field.set(null, executor);
         } catch (NoSuchFieldException | IllegalAccessException e) {
             e.printStackTrace();
             logger.error("Failed configuring base Model.");
         }
+        LinkedHashMap<Class<? extends Model>, Model> prototypes = new LinkedHashMap<>();
         for (Class<? extends Model> clazz: modelList) {
             try {
-                Object mod = clazz.newInstance();
-                // 缓存注册字段
+                // 缓存注册字段，构建字段存取器
+                ModelMapper<?> mapper = mappers.get(clazz);
                 ArrayList<Field> fieldset = new ArrayList<>();
-                for(Field field : clazz.getDeclaredFields())
-                    if(field.getDeclaredAnnotation(FieldEntry.class)!=null) {
-                        field.setAccessible(true);
+                Accessor[] accessor;
+                if(mapper!=null) {  // 字段顺序以生成的映射器为准
+                    String[] columns = mapper.columns();
+                    accessor = new Accessor[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        Field field = clazz.getDeclaredField(columns[i]);
                         fieldset.add(field);
+                        accessor[i] = new Accessor(field, mapper, i);
+                    }
+                } else {
+                    for(Field field : clazz.getDeclaredFields())
+                        if(field.getDeclaredAnnotation(FieldEntry.class)!=null) {
+                            field.setAccessible(true);
+                            fieldset.add(field);
+                        }
+                    accessor = new Accessor[fieldset.size()];
+                    for (int i = 0; i < accessor.length; i++) accessor[i] = new Accessor(fieldset.get(i));
+                    ColumnReader[] readers = new ColumnReader[fieldset.size()];     // 按方言为各字段选定列读取器
+                    for (int i = 0; i < readers.length; i++) {
+                        Field field = fieldset.get(i);
+                        readers[i] = TypeMap.isCompact(field) ? ModelMapper.compactReader(field.getType()) : dbEngine.reader(field.getType());
+                        if(readers[i]==null && fieldset.get(i).getType()!=LazyText.class) logger.error(String.format("Type '%s' not supported, see TypeMap!", fieldset.get(i).getType()));
                     }
+                    mapper = reflectiveMapper(clazz, fieldset, accessor, readers);
+                    mappers.put(clazz, mapper);
+                }
                 fieldsets.put(clazz, fieldset);
+                accessors.put(clazz, accessor);
+                Model mod = mapper.create();
                 // 建表/验证存在
                 Method method = Model.class.getDeclaredMethod("sqlize");
                 method.setAccessible(true);
                 method.invoke(mod);
-                // 模型化/管理器注册
-                method = Model.class.getDeclaredMethod("modelize");
-                method.setAccessible(true);
-                method.invoke(mod);
-            } catch (IllegalAccessException | NoSuchMethodException | InstantiationException | InvocationTargetException e) {
+                prototypes.put(clazz, mod);
+            } catch (IllegalAccessException | NoSuchMethodException | NoSuchFieldException | InvocationTargetException | IllegalStateException e) {
+                e.printStackTrace();
+                logger.error("Failed wakeup model " + clazz.getSimpleName());
+            }
+        }
+        dbEngine.saveMetadata(tables);
+        CacheFile cacheFile = snapshotFile!=null ? CacheFile.open(snapshotFile, String.valueOf(dbUri), dbEngine.fingerprint()) : null;
+        if(cacheFile!=null) setCacheFile(cacheFile);
+        modelize(prototypes);
+        if(cacheFile!=null) setCacheFile(null);     // 释放映射
+        if(flushInterval>0) {
+            flusher = new Flusher(dbEngine, flushInterval, flushCapacity);
+            try {
+                Field field = Model.class.getDeclaredField("flusher");
+                field.setAccessible(true); field.set(null, flusher);
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                e.printStackTrace();
+                logger.error("Failed enabling write-behind, fallback to write-through.");
+                flusher.stop();
+                flusher = null;
+            }
+        }
+        if(refreshInterval>0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Akasha-Refresher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+    public void refresh() {     // 按注册顺序刷新各模型的缓存
+        for (Class<? extends Model> clazz : modelList) {
+            Manager manager = managers.get(clazz);
+            if(manager==null) continue;
+            try {
+                manager.refresh();
+            } catch (Exception e) {
+                e.printStackTrace();
+                logger.error("Failed refreshing model " + clazz.getSimpleName());
+            }
+        }
+    }
+    public Transaction transaction() { return dbEngine.transaction(); }    // 本线程独占的事务，用try-with-resources
+    public boolean flush() { return flusher==null || flusher.flush(); }     // 阻塞至此前的改动全部落库，有改动重试后仍被丢弃时返回false
+    public void stop() {
+        if(refresher!=null) {
+            refresher.shutdown();   // 等待进行中的刷新完成
+            try {
+                refresher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        executor.shutdown();    // 等待已提交的异步写库完成
+        try {
+            if(!executor.awaitTermination(1, TimeUnit.MINUTES)) logger.warn("Async writes not finished in time, abandoned.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(flusher!=null) flusher.stop();   // 排空待写表
+        if(snapshotFile!=null) CacheFile.write(snapshotFile, String.valueOf(dbUri), dbEngine.fingerprint(), modelList);
+        dbEngine.disconnect();
+    }
+
+    /*
+     *  模型化/管理器注册：各模型互不依赖，并行载入，每个模型各借一个读连接(SQLite为WAL并发读)
+     *    全部载入后再按注册顺序调用onModelized()，钩子内可以访问任一模型的缓存
+     */
+    private void modelize(LinkedHashMap<Class<? extends Model>, Model> prototypes) {
+        long time = System.currentTimeMillis();
+        Method modelize, onModelized;
+        try {
+            modelize = Model.class.getDeclaredMethod("modelize");
+            modelize.setAccessible(true);
+            onModelized = Model.class.getDeclaredMethod("onModelized");
+            onModelized.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            logger.error("Failed configuring base Model.");
+            return;
+        }
+        int threads = Math.max(1, Math.min(prototypes.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService loader = Executors.newFixedThreadPool(threads);
+        LinkedHashMap<Class<? extends Model>, Future<?>> loads = new LinkedHashMap<>();
+        for (Map.Entry<Class<? extends Model>, Model> entry : prototypes.entrySet())
+            loads.put(entry.getKey(), loader.submit(() -> modelize.invoke(entry.getValue())));
+        loader.shutdown();
+        ArrayList<Class<? extends Model>> loaded = new ArrayList<>();
+        for (Map.Entry<Class<? extends Model>, Future<?>> load : loads.entrySet()) {   // 先等全部载入完成
+            Class<? extends Model> clazz = load.getKey();
+            try {
+                load.getValue().get();
+                loaded.add(clazz);
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                logger.error("Failed wakeup model " + clazz.getSimpleName());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (Class<? extends Model> clazz : loaded) {   // 再按注册顺序调用钩子，载入失败的模型不调用
+            try {
+                onModelized.invoke(prototypes.get(clazz));
+            } catch (IllegalAccessException | InvocationTargetException e) {
                 e.printStackTrace();
                 logger.error("Failed wakeup model " + clazz.getSimpleName());
             }
         }
+        logger.info(String.format("Modelized %d models in %d ms with %d threads.",
+                prototypes.size(), System.currentTimeMillis() - time, threads));
+    }
+
+    private static void setCacheFile(CacheFile cacheFile) {
+        try {
+            Field field = Model.class.getDeclaredField("cacheFile");
+            field.setAccessible(true); field.set(null, cacheFile);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            e.printStackTrace();
+            logger.error("Failed configuring base Model.");
+        }
+    }
+    private static <T extends Model> ModelMapper<T> reflectiveMapper(Class<T> clazz, ArrayList<Field> fieldset,
+                                                                     Accessor[] accessors, ColumnReader[] readers) {
+        return new ReflectiveMapper<>(clazz, fieldset, accessors, readers);
     }
-    public void stop() { dbEngine.disconnect(); }
 
 }
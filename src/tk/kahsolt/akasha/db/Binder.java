@@ -0,0 +1,14 @@
+package tk.kahsolt.akasha.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface Binder {
+
+    /*
+     *  直接向PreparedStatement绑定参数，省去Object[]参数数组的装配
+     */
+    void bind(PreparedStatement ps) throws SQLException;
+
+}
@@ -0,0 +1,15 @@
+package tk.kahsolt.akasha.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface ColumnReader {
+
+    /*
+     *  按列号读取一列并转为字段类型，SQL NULL读作null
+     *    由SQLEngine.reader()按字段类型与方言选定，每个字段只选一次
+     */
+    Object read(ResultSet rs, int index) throws SQLException;
+
+}
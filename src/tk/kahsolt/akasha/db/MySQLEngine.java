@@ -3,7 +3,9 @@ package tk.kahsolt.akasha.db;
 import tk.kahsolt.sqlbuilder.SQLBuilder;
 import tk.kahsolt.sqlbuilder.sql.Dialect;
 
+import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
 
 public class MySQLEngine extends SQLEngine {
 
@@ -27,18 +29,49 @@ public class MySQLEngine extends SQLEngine {
     }
 
     @Override
-    public void connect() {
-        try {
-            Class.forName("com.mysql.jdbc.Driver");
-            dbConnection = DriverManager.getConnection(this.dbUri);
-            dbConnection.setAutoCommit(true);
-            fetchMetadata();
-        } catch (ClassNotFoundException e) {
-            logger.error("Cannot find jdbc driver");
-        } catch (SQLException e) {
-            e.printStackTrace();
-            logger.error("SQL execution error");
-        }
+    protected int fetchSize() { return Integer.MIN_VALUE; }     // Connector/J仅在此值下逐行流式读取
+
+    @Override
+    protected String driver() { return "com.mysql.jdbc.Driver"; }
+    @Override
+    protected int writerCount() { return poolSize; }   // 读写共用poolSize个连接
+    @Override
+    protected int readerCount() { return 0; }
+    @Override
+    protected Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(this.dbUri);
+        connection.setAutoCommit(true);
+        return connection;
+    }
+
+    @Override
+    protected String[] replaceColumn(String table, String column, String temporary, String definition) {  // 5.x没有RENAME COLUMN
+        return new String[] {
+                String.format("ALTER TABLE `%s` DROP COLUMN `%s`;", table, column),
+                String.format("ALTER TABLE `%s` CHANGE COLUMN `%s` `%s` %s;", table, temporary, column, definition),
+        };
+    }
+    @Override
+    protected String columnsQuery(int tables) {
+        return String.format("SELECT TABLE_NAME, COLUMN_NAME FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME IN (%s);", placeholders(tables));
+    }
+    @Override
+    protected String schemaFingerprint() throws SQLException {
+        // 只取DDL决定的事实：scope内各表的列数与(表名,列名,类型,位置)的校验和，增删表、加列、改类型都会改变它
+        // 不用TABLES.UPDATE_TIME，它随每次写入变化，几乎每次启动都会使缓存失效
+        if(scope.isEmpty()) return null;
+        ArrayList<Object> row = fetch(String.format("SELECT COUNT(*), SUM(CRC32(CONCAT_WS('/', TABLE_NAME, COLUMN_NAME, COLUMN_TYPE, ORDINAL_POSITION))) " +
+                "FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME IN (%s);", placeholders(scope.size())), scope.toArray());
+        if(row.size()<2) return null;
+        return String.format("%s/%s", row.get(0), row.get(1));
+    }
+    @Override
+    protected File metadataFile() {     // 工作目录下按库地址命名，如mysql_localhost_3306_test.schema
+        String uri = dbUri.startsWith("jdbc:") ? dbUri.substring("jdbc:".length()) : dbUri;
+        int query = uri.indexOf('?');
+        String name = (query<0 ? uri : uri.substring(0, query)).replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_|_$", "");
+        return new File(System.getProperty("user.dir"), name + ".schema");
     }
 
 }
@@ -0,0 +1,15 @@
+package tk.kahsolt.akasha.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface ResultHandler<T> {
+
+    /*
+     *  在连接借出期间处理结果集，返回后结果集与语句随即关闭、连接归还连接池
+     *    勿在外部保留ResultSet的引用
+     */
+    T handle(ResultSet rs) throws SQLException;
+
+}
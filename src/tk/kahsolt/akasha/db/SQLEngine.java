@@ -3,10 +3,16 @@ package tk.kahsolt.akasha.db;
 import org.apache.log4j.Logger;
 import tk.kahsolt.sqlbuilder.SQLBuilder;
 
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+import java.io.*;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public abstract class SQLEngine {
 
@@ -15,58 +21,381 @@ public abstract class SQLEngine {
     public SQLBuilder sqlBuilder;
 
     protected String dbUri;
-    protected Connection dbConnection;
     public HashMap<String, HashSet<String>> dbSchema;
 
+    /*
+     * Connection pool
+     *   写连接writerCount()个，读连接readerCount()个(为0时读也走写连接)
+     *   本线程有事务时，读写都走事务独占的连接；否则每条语句临时借出一个连接
+     */
+    protected int poolSize = 4;
+    private BlockingQueue<Connection> writers;
+    private BlockingQueue<Connection> readers;
+    private final ThreadLocal<Transaction> transactions = new ThreadLocal<>();
+
+    protected abstract String driver();
+    protected abstract Connection open() throws SQLException;   // 新建一个配置好的连接
+    protected int writerCount() { return 1; }
+    protected int readerCount() { return poolSize; }
+    public void setPoolSize(int poolSize) { this.poolSize = Math.max(1, poolSize); }   // 须在connect()之前调用
+
+    @FunctionalInterface
+    private interface Work<T> { T run(Connection connection) throws SQLException; }
+    protected long borrowTimeout() { return 30000; }    // 等待空闲连接的上限(ms)，超时的语句按执行失败处理
+    private Connection borrow(BlockingQueue<Connection> pool) throws SQLException {
+        try {
+            Connection connection = pool.poll(borrowTimeout(), TimeUnit.MILLISECONDS);
+            if(connection==null) throw new SQLException(String.format("No connection available in %d ms.", borrowTimeout()));
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.", e);
+        }
+    }
+    private <T> T write(Work<T> work) throws SQLException {
+        Transaction tx = transactions.get();
+        if(tx!=null) return work.run(tx.connection);
+        Connection connection = borrow(writers);
+        try {
+            return work.run(connection);
+        } finally {
+            writers.offer(connection);
+        }
+    }
+    private <T> T read(Work<T> work) throws SQLException {
+        Transaction tx = transactions.get();
+        if(tx!=null) return work.run(tx.connection);    // 读本事务未提交的改动
+        Connection connection = borrow(readers);
+        try {
+            return work.run(connection);
+        } finally {
+            readers.offer(connection);
+        }
+    }
+    private void failed() {     // 事务内语句失败，整个事务只能回滚
+        Transaction tx = transactions.get();
+        if(tx!=null) tx.fail();
+    }
+
+    /*
+     * Statement cache
+     *   每个连接一个LRU缓存，键为SQL模板，淘汰时关闭语句；执行出错的语句不再复用
+     *   连接同一时刻只借给一个线程，缓存无需加锁
+     */
+    private final IdentityHashMap<Connection, StatementCache> statementCaches = new IdentityHashMap<>();     // connect()之后只读
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    protected int statementCacheSize() { return 64; }
+    public long statementHits() { return statementHits.get(); }
+    public long statementMisses() { return statementMisses.get(); }
+    private static final class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private StatementCache(int capacity) {
+            super(16, 0.75f, true);     // 按访问排序
+            this.capacity = capacity;
+        }
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if(size()<=capacity) return false;
+            close(eldest.getValue());
+            return true;
+        }
+    }
+    @FunctionalInterface
+    private interface Use<T> { T run(PreparedStatement ps) throws SQLException; }
+    private Connection cached(Connection connection) {
+        statementCaches.put(connection, new StatementCache(statementCacheSize()));
+        return connection;
+    }
+    private <T> T use(Connection connection, String sqlTemplate, boolean generatedKeys, Use<T> use) throws SQLException {
+        StatementCache cache = statementCaches.get(connection);
+        String key = generatedKeys ? "#" + sqlTemplate : sqlTemplate;
+        PreparedStatement ps = cache.get(key);
+        if(ps!=null) statementHits.incrementAndGet();
+        else {
+            statementMisses.incrementAndGet();
+            ps = generatedKeys ? connection.prepareStatement(sqlTemplate, Statement.RETURN_GENERATED_KEYS) :
+                    connection.prepareStatement(sqlTemplate);
+            cache.put(key, ps);
+        }
+        try {
+            return use.run(ps);
+        } catch (SQLException | RuntimeException e) {
+            cache.remove(key);
+            close(ps);
+            throw e;
+        }
+    }
+    private static void close(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    /*
+     * Schema discovery
+     *   只查询已注册模型的表：方言给出columnsQuery()时一条语句查完，否则退回DatabaseMetaData逐表查询
+     *   方言能给出结构指纹(schemaFingerprint())时，结果缓存到metadataFile()，指纹不变的热启动不再查询
+     */
+    protected TreeSet<String> scope = new TreeSet<>();             // 已注册模型的表名，由fetchMetadata()设定
+    protected String columnsQuery(int tables) { return null; }     // 参数为tables个表名，结果为(表名, 列名)
+    protected String schemaFingerprint() throws SQLException { return null; }   // 可只涵盖scope中的表
+    protected File metadataFile() { return null; }
+    protected static String placeholders(int count) { return String.join(", ", Collections.nCopies(count, "?")); }
+
     // for connection control
-    public abstract void connect();
-    public void disconnect() {
+    public void connect() {
         try {
-            if(!dbConnection.getAutoCommit()) {
-                try {
-                    dbConnection.commit();  // in case you forget to commit
-                } catch (SQLException ignored) { }
-            }
-            dbConnection.close();
-        } catch (Exception e) {
+            Class.forName(driver());
+            writers = new ArrayBlockingQueue<>(Math.max(1, writerCount()));
+            for (int i = 0; i < Math.max(1, writerCount()); i++) writers.add(cached(open()));
+            if(readerCount()>0) {
+                readers = new ArrayBlockingQueue<>(readerCount());
+                for (int i = 0; i < readerCount(); i++) readers.add(cached(open()));
+            } else readers = writers;
+        } catch (ClassNotFoundException e) {
+            logger.error("Cannot find jdbc driver");
+        } catch (SQLException e) {
             e.printStackTrace();
+            logger.error("SQL execution error");
+        }
+    }
+    public void disconnect() {
+        Transaction tx = transactions.get();
+        if(tx!=null) tx.commit();   // in case you forget to commit
+        int idle = (writers!=null ? writers.size() : 0) + (readers!=null && readers!=writers ? readers.size() : 0);
+        if(idle<statementCaches.size())     // 别的线程仍借着或在事务中的，一并关闭
+            logger.warn(String.format("%d connections still in use, closed anyway.", statementCaches.size() - idle));
+        logger.info(String.format("Statement cache: %d hits, %d misses.", statementHits(), statementMisses()));
+        for (Map.Entry<Connection, StatementCache> entry : statementCaches.entrySet()) {   // 键为连接池打开过的全部连接
+            try {
+                for (PreparedStatement ps : entry.getValue().values()) close(ps);
+                entry.getValue().clear();
+                entry.getKey().close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+        statementCaches.clear();
+        if(writers!=null) writers.clear();
+        if(readers!=null) readers.clear();
     }
-    public void fetchMetadata() {
+    public void fetchMetadata(Collection<String> tables) {
+        long time = System.currentTimeMillis();
+        scope = new TreeSet<>(tables);
         dbSchema = new HashMap<>();
+        String fingerprint = fingerprint();
+        if(loadMetadata(scope, fingerprint)) {
+            logger.info(String.format("Schema of %d tables loaded from cache.", scope.size()));
+            return;
+        }
+        if(scope.isEmpty()) return;
         try {
-            DatabaseMetaData dmd = dbConnection.getMetaData();
-            ResultSet rs = dmd.getTables(null, null, null, null);
-            while (rs.next()) {
-                HashSet<String> columns = new HashSet<>();
-                String table = rs.getString("TABLE_NAME");
-                dbSchema.put(table, columns);
-                ResultSet rss = dmd.getColumns(null, null, table, null);
-                try {
-                    while (rss.next())
-                        columns.add(rss.getString("COLUMN_NAME"));
-                } catch (SQLException e) { e.printStackTrace(); }
-                rss.close();
+            String sql = columnsQuery(scope.size());
+            if(sql!=null) {
+                query(sql, rs -> {
+                    while (rs.next())
+                        dbSchema.computeIfAbsent(rs.getString(1), k -> new HashSet<>()).add(rs.getString(2));
+                    return null;
+                }, scope.toArray());
+            } else {
+                read(connection -> {
+                    DatabaseMetaData dmd = connection.getMetaData();
+                    for (String table : scope) {
+                        try (ResultSet rs = dmd.getColumns(null, null, table, null)) {
+                            while (rs.next())
+                                dbSchema.computeIfAbsent(table, k -> new HashSet<>()).add(rs.getString("COLUMN_NAME"));
+                        }
+                    }
+                    return null;
+                });
             }
-            rs.close();
         } catch (SQLException e) { e.printStackTrace(); }
+        logger.info(String.format("Schema of %d tables fetched in %d ms.", scope.size(), System.currentTimeMillis() - time));
+    }
+    public void saveMetadata(Collection<String> tables) {  // 建表/改表之后调用，按新的指纹写缓存
+        File file = metadataFile();
+        String fingerprint = fingerprint();
+        if(file==null || fingerprint==null) return;
+        Properties cache = new Properties();
+        cache.setProperty("fingerprint", fingerprint);
+        cache.setProperty("tables", String.join(",", new TreeSet<>(tables)));
+        for (Map.Entry<String, HashSet<String>> entry : dbSchema.entrySet())
+            cache.setProperty("table." + entry.getKey(), String.join(",", new TreeSet<>(entry.getValue())));
+        try (OutputStream out = new FileOutputStream(file)) {
+            cache.store(out, "Akasha schema cache");
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.warn("Failed writing schema cache " + file);
+        }
+    }
+    public String fingerprint() {  // 结构指纹，方言不支持时为null
+        try {
+            return schemaFingerprint();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    private boolean loadMetadata(TreeSet<String> scope, String fingerprint) {
+        File file = metadataFile();
+        if(file==null || fingerprint==null || !file.isFile()) return false;
+        Properties cache = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            cache.load(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if(!fingerprint.equals(cache.getProperty("fingerprint"))
+                || !String.join(",", scope).equals(cache.getProperty("tables"))) return false;   // 结构变了或注册的模型变了
+        for (String table : scope) {
+            String columns = cache.getProperty("table." + table);
+            if(columns!=null) dbSchema.put(table, new HashSet<>(Arrays.asList(columns.split(","))));
+        }
+        return true;
     }
 
-    // for DCL
-    public void begin() {
+    /*
+     * Column re-encoding
+     *   列改用新的存储编码后(见FieldEntry.compact())，由sqlize()把已有的值换算过去；中途失败时下次启动接着做
+     *   encoded    列中是否已无旧编码的值，默认按声明类型判断
+     *   reencode   按id分批读出旧值、经convert换算后写回，每批一个事务；默认写入临时列，全部写完后以之替换原列
+     */
+    protected static final int REENCODE_BATCH = 1000;
+    public boolean encoded(String table, String column, String type) {
         try {
-            dbConnection.setAutoCommit(false);
+            return read(connection -> {
+                DatabaseMetaData dmd = connection.getMetaData();
+                try (ResultSet rs = dmd.getColumns(connection.getCatalog(), null, table, column)) {
+                    return !rs.next() || baseType(rs.getString("TYPE_NAME")).equals(baseType(type));
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            return true;    // 判断不了时不动数据
         }
     }
-    public void commit() {
+    public boolean reencode(String table, String column, String type, String definition, Function<Object, Object> convert) {
+        String temporary = column + "__reencoded";
+        HashSet<String> columns = dbSchema.get(table);
+        if(columns!=null && columns.remove(temporary))      // 上次中断留下的
+            execute(String.format("ALTER TABLE `%s` DROP COLUMN `%s`;", table, temporary));
+        if(execute(String.format("ALTER TABLE `%s` ADD COLUMN `%s` %s;", table, temporary, type))!=0) return false;
+        if(copy(table, column, temporary, "", convert)<0) return false;
+        for (String sql : replaceColumn(table, column, temporary, definition))
+            if(execute(sql)!=0) return false;
+        return true;
+    }
+    protected String[] replaceColumn(String table, String column, String temporary, String definition) {  // 以临时列替换原列，方言可改为一条语句
+        return new String[] {
+                String.format("ALTER TABLE `%s` DROP COLUMN `%s`;", table, column),
+                String.format("ALTER TABLE `%s` RENAME COLUMN `%s` TO `%s`;", table, temporary, column),
+        };
+    }
+    protected int copy(String table, String from, String to, String condition, Function<Object, Object> convert) {    // 返回写回的行数，失败为-1
+        String select = String.format("SELECT id, `%s` FROM `%s` WHERE id > ?%s ORDER BY id LIMIT %d;", from, table, condition, REENCODE_BATCH);
+        String update = String.format("UPDATE `%s` SET `%s` = ? WHERE id = ?;", table, to);
+        int copied = 0;
+        for (int last = Integer.MIN_VALUE; ; ) {
+            ArrayList<Object[]> rows = query(select, rs -> {
+                ArrayList<Object[]> res = new ArrayList<>();
+                while (rs.next()) res.add(new Object[] { rs.getInt(1), rs.getObject(2) });
+                return res;
+            }, last);
+            if(rows==null) return -1;
+            if(rows.isEmpty()) return copied;
+            try {
+                write(connection -> {
+                    boolean ownTransaction = connection.getAutoCommit();
+                    if(ownTransaction) connection.setAutoCommit(false);
+                    try {
+                        use(connection, update, false, ps -> {
+                            for (Object[] row : rows) {
+                                ps.setObject(1, row[1]==null ? null : convert.apply(row[1]));
+                                ps.setInt(2, (Integer) row[0]);
+                                ps.addBatch();
+                            }
+                            return ps.executeBatch();
+                        });
+                        if(ownTransaction) connection.commit();
+                        return null;
+                    } catch (SQLException | RuntimeException e) {
+                        if(ownTransaction) connection.rollback();
+                        throw e;
+                    } finally {
+                        if(ownTransaction) connection.setAutoCommit(true);
+                    }
+                });
+            } catch (SQLException | RuntimeException e) {     // 含换算失败
+                e.printStackTrace();
+                logger.error(String.format("Failed re-encoding column '%s' of table '%s'.", from, table));
+                return -1;
+            }
+            copied += rows.size();
+            last = (Integer) rows.get(rows.size() - 1)[0];
+        }
+    }
+    private static String baseType(String type) {   // 去掉长度，如BINARY(16)为BINARY
+        int paren = type.indexOf('(');
+        return (paren<0 ? type : type.substring(0, paren)).trim().toUpperCase();
+    }
+
+    // for DCL
+    public Transaction transaction() {
+        Transaction tx = transactions.get();
+        if(tx!=null) {  // 嵌套，并入外层事务
+            tx.enter();
+            return tx;
+        }
+        try {
+            Connection connection = borrow(writers);
+            try {
+                connection.setAutoCommit(false);
+            } catch (SQLException e) {
+                writers.offer(connection);
+                throw e;
+            }
+            tx = new Transaction(this, connection);
+            transactions.set(tx);
+            return tx;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed starting transaction.", e);
+        }
+    }
+    boolean end(Transaction tx, boolean commit) {
+        boolean success = false;
         try {
-            dbConnection.commit();
-            dbConnection.setAutoCommit(true);
+            if(commit) tx.connection.commit();
+            else tx.connection.rollback();
+            success = commit;
         } catch (SQLException e) {
             e.printStackTrace();
+            try {
+                tx.connection.rollback();
+            } catch (SQLException e1) { e1.printStackTrace(); }
+        } finally {
+            try {
+                tx.connection.setAutoCommit(true);
+            } catch (SQLException e) { e.printStackTrace(); }
+            transactions.remove();
+            writers.offer(tx.connection);
         }
+        tx.ended(success);
+        return success;
+    }
+    public void onEnd(Runnable committed, Runnable rolledBack) {   // 本线程有事务时，待最外层提交/回滚之后执行其一；否则语句已自动提交，立即执行committed
+        Transaction tx = transactions.get();
+        if(tx!=null) tx.hook(committed, rolledBack);
+        else if(committed!=null) committed.run();
+    }
+    public void begin() { transaction(); }  // 在本线程开启事务，须与commit()成对，推荐改用transaction()
+    public void commit() {
+        Transaction tx = transactions.get();
+        if(tx==null) return;
+        tx.commit();
+        tx.close();
     }
 
     /*
@@ -77,66 +406,203 @@ public abstract class SQLEngine {
      */
     public int execute(String sqlTemplate, Object... parameters) {
         dumpQuery("\\Execute\\", sqlTemplate, parameters);
-        try {
-            PreparedStatement ps = dbConnection.prepareStatement(sqlTemplate);
+        return executeUpdate(sqlTemplate, ps -> {
             for (int i = 1; i <= parameters.length; i++) ps.setObject(i, parameters[i-1]);
-            int effectedRows = ps.executeUpdate();
-            ps.close();
-            return effectedRows;
+        });
+    }
+    public int execute(String sqlTemplate, Binder binder) {
+        dumpQuery("\\Execute\\", sqlTemplate);
+        return executeUpdate(sqlTemplate, binder);
+    }
+    private int executeUpdate(String sqlTemplate, Binder binder) {
+        try {
+            return write(connection -> use(connection, sqlTemplate, false, ps -> {
+                binder.bind(ps);
+                return ps.executeUpdate();
+            }));
         } catch (SQLException e) {
             e.printStackTrace();
-            try {
-                if(!dbConnection.getAutoCommit()) dbConnection.rollback();
-            } catch (SQLException e1) { e1.printStackTrace(); }
+            failed();
         }
         return -1;
     }
 
     /*
-     * for DQL
-     *   acquire    取第一个标量Object          类型映射关系丧失，通常用于SELECT COUNT
-     *   fetch      取第一行ArrayList<Object>   类型映射关系丧失，通常用于取三个内定字段的值
-     *   query      取结果集ResultSet(记得关闭)  类型映射在Model.modalize()中处理，用于模型化
+     * for bulk INSERT
+     *   insert     各行绑定后addBatch，一次executeBatch，返回各行的自增主键，失败返回null
+     *              驱动返回的主键数与行数不符时撤销本批(保存点)，改为逐行插入并逐行取主键；batchKeys()为false的方言直接逐行
+     *              若本线程没有事务，则本批在独立事务中执行，保证原子性
      */
-    public Object acquire(String sqlTemplate, Object... parameters) {
-        // dumpQuery("/Acquire/", sqlTemplate, parameters);
+    public int[] insert(String sqlTemplate, List<? extends Binder> rows) {
+        dumpQuery("\\Insert\\", sqlTemplate, rows.size() + " rows");
         try {
-            ResultSet rs = query(sqlTemplate, parameters);
-            rs.next();
-            Object res = rs.getObject(1);
-            rs.close();
-            return res;
+            return write(connection -> {
+                boolean ownTransaction = connection.getAutoCommit();
+                if(ownTransaction) connection.setAutoCommit(false);
+                try {
+                    int[] ids = insert(connection, sqlTemplate, rows);
+                    if(ownTransaction) connection.commit();
+                    return ids;
+                } catch (SQLException e) {
+                    if(ownTransaction) connection.rollback();
+                    throw e;
+                } finally {
+                    if(ownTransaction) connection.setAutoCommit(true);
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            failed();
         }
         return null;
     }
+    protected boolean batchKeys() { return true; }     // 驱动能否为executeBatch的每一行返回自增主键
+    private int[] insert(Connection connection, String sqlTemplate, List<? extends Binder> rows) throws SQLException {
+        return use(connection, sqlTemplate, true, ps -> {
+            if(batchKeys()) {
+                Savepoint savepoint = connection.setSavepoint();
+                for (Binder row : rows) {
+                    row.bind(ps);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                int[] ids = keys(ps, rows.size());
+                if(ids==null) {     // 主键数与行数不符，不猜测，撤销本批后逐行插入
+                    connection.rollback(savepoint);
+                    logger.warn("Generated keys missing for batch INSERT, falling back to row by row.");
+                }
+                connection.releaseSavepoint(savepoint);
+                if(ids!=null) return ids;
+            }
+            int[] ids = new int[rows.size()];
+            for (int i = 0; i < ids.length; i++) {
+                rows.get(i).bind(ps);
+                ps.executeUpdate();
+                int[] key = keys(ps, 1);
+                if(key==null) throw new SQLException("No generated key returned for INSERT.");
+                ids[i] = key[0];
+            }
+            return ids;
+        });
+    }
+    private static int[] keys(PreparedStatement ps, int expected) throws SQLException {    // 个数不符时返回null
+        ArrayList<Integer> keys = new ArrayList<>(expected);
+        try (ResultSet rs = ps.getGeneratedKeys()) {
+            while (rs.next()) keys.add(rs.getInt(1));
+        }
+        if(keys.size()!=expected) return null;
+        int[] ids = new int[expected];
+        for (int i = 0; i < expected; i++) ids[i] = keys.get(i);
+        return ids;
+    }
+
+    /*
+     * for DQL
+     *   acquire    取第一个标量Object          类型映射关系丧失，通常用于SELECT COUNT
+     *   fetch      取第一行ArrayList<Object>   类型映射关系丧失，通常用于取三个内定字段的值
+     *   query      在handler中处理结果集       类型映射在Model.modalize()中处理，用于模型化
+     *              不带handler的旧接口已弃用，返回读入内存的CachedRowSet
+     *   失败时返回null
+     */
+    public Object acquire(String sqlTemplate, Object... parameters) {
+        return query(sqlTemplate, rs -> rs.next() ? rs.getObject(1) : null, parameters);
+    }
     public ArrayList<Object> fetch(String sqlTemplate, Object... parameters) {
-        // dumpQuery("/Fetch/", sqlTemplate, parameters);
-        try {
-            ResultSet rs = query(sqlTemplate, parameters);
-            ArrayList<Object> res = new ArrayList<>();
-            rs.next();
+        ArrayList<Object> res = query(sqlTemplate, rs -> {
+            ArrayList<Object> row = new ArrayList<>();
+            if(!rs.next()) return row;
             int columnCount = rs.getMetaData().getColumnCount();
-            for (int i = 1; i <= columnCount; i++) res.add(rs.getObject(i));
-            rs.close();
-            return res;
-        } catch (SQLException e) {
+            for (int i = 1; i <= columnCount; i++) row.add(rs.getObject(i));
+            return row;
+        }, parameters);
+        return res!=null ? res : new ArrayList<>();
+    }
+    public <T> T query(String sqlTemplate, ResultHandler<T> handler, Object... parameters) {
+        dumpQuery("/Query/", sqlTemplate, parameters);
+        try {
+            return read(connection -> use(connection, sqlTemplate, false, ps -> {
+                for (int i = 1; i <= parameters.length; i++) ps.setObject(i, parameters[i-1]);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return handler.handle(rs);
+                }
+            }));
+        } catch (SQLException | ArrayIndexOutOfBoundsException e) {
             e.printStackTrace();
         }
-        return new ArrayList<>();
+        return null;
     }
-    public ResultSet query(String sqlTemplate, Object... parameters) {
-        dumpQuery("/Query/", sqlTemplate, parameters);
+
+    @Deprecated
+    public ResultSet query(String sqlTemplate, Object... parameters) {  // 旧接口，结果集整体读入CachedRowSet后返回，不占用连接；请改用query(sqlTemplate, handler, parameters)
+        return query(sqlTemplate, rs -> {
+            CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+            rows.populate(rs);
+            return rows;
+        }, parameters);
+    }
+
+    /*
+     * update_time
+     *   timeMark       与update_time列比较的高水位参数，方言按该列的存储格式换算
+     *   touchTrigger   库不支持ON UPDATE CURRENT_TIMESTAMP时，建表后补建的触发器；不需要时为null
+     */
+    public Object timeMark(Timestamp mark) { return mark; }
+    public String touchTrigger(String table) { return null; }
+
+    /*
+     * for modelizing large tables
+     *   stream     同query，但按fetchSize()分批取行而非一次缓冲整个结果集；只用于整表扫描，语句不缓存
+     *   reader     按字段类型选定的列读取器，无需依赖getObject(int, Class)及其异常
+     */
+    protected int fetchSize() { return 1000; }
+    public <T> T stream(String sqlTemplate, ResultHandler<T> handler, Object... parameters) {
+        dumpQuery("/Stream/", sqlTemplate, parameters);
         try {
-            PreparedStatement ps = dbConnection.prepareStatement(sqlTemplate);
-            for (int i = 1; i <= parameters.length; i++) ps.setObject(i, parameters[i-1]);
-            return ps.executeQuery();
+            return read(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sqlTemplate, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setFetchSize(fetchSize());
+                    for (int i = 1; i <= parameters.length; i++) ps.setObject(i, parameters[i-1]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return handler.handle(rs);
+                    }
+                }
+            });
         } catch (SQLException | ArrayIndexOutOfBoundsException e) {
             e.printStackTrace();
         }
         return null;
     }
+    public ColumnReader reader(Class<?> type) {
+        if(type==Integer.class) return (rs, index) -> {
+            int val = rs.getInt(index);
+            return rs.wasNull() ? null : val;
+        };
+        if(type==Double.class) return (rs, index) -> {
+            double val = rs.getDouble(index);
+            return rs.wasNull() ? null : val;
+        };
+        if(type==UUID.class) return (rs, index) -> {
+            String val = rs.getString(index);
+            return val!=null ? UUID.fromString(val) : null;
+        };
+        if(type==Long.class) return (rs, index) -> {
+            long val = rs.getLong(index);
+            return rs.wasNull() ? null : val;
+        };
+        if(type==Boolean.class) return (rs, index) -> {
+            boolean val = rs.getBoolean(index);
+            return rs.wasNull() ? null : val;
+        };
+        if(type==Timestamp.class) return ResultSet::getTimestamp;
+        if(type==String.class) return ResultSet::getString;
+        if(type==byte[].class) return ResultSet::getBytes;
+        if(type==int.class) return ResultSet::getInt;     // 原始类型：NULL读作0/false；ReflectiveMapper另有不装箱的读取
+        if(type==long.class) return ResultSet::getLong;
+        if(type==double.class) return ResultSet::getDouble;
+        if(type==float.class) return ResultSet::getFloat;
+        if(type==boolean.class) return ResultSet::getBoolean;
+        return null;
+    }
 
     private void dumpQuery(String action, String sqlTemplate, Object... parameters) {
         ArrayList<String> params = new ArrayList<>();
@@ -3,11 +3,16 @@ package tk.kahsolt.akasha.db;
 import tk.kahsolt.sqlbuilder.SQLBuilder;
 import tk.kahsolt.sqlbuilder.sql.Dialect;
 
+import java.io.File;
 import java.sql.*;
+import java.text.SimpleDateFormat;
 import java.util.Properties;
+import java.util.function.Function;
 
 public class SQLiteEngine extends SQLEngine {
 
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";    // CURRENT_TIMESTAMP的文本格式
+
     public SQLiteEngine() {
         dbUri = String.format("jdbc:sqlite://%s%ssqlite3.db", System.getProperty("user.dir"), System.getProperty("file.separator"));
         sqlBuilder = new SQLBuilder(Dialect.SQLITE);
@@ -18,21 +23,61 @@ public class SQLiteEngine extends SQLEngine {
     }
 
     @Override
-    public void connect() {
-        try {
-            Class.forName("org.sqlite.JDBC");
-            Properties pro = new Properties();
-            pro.put("date_string_format", "yyyy-MM-dd HH:mm:ss");
-            dbConnection = DriverManager.getConnection(this.dbUri, pro);
-            dbConnection.setAutoCommit(true);
-            dbConnection.createStatement().execute("PRAGMA foreign_keys = ON;");
-            fetchMetadata();
-        } catch (ClassNotFoundException e) {
-            logger.error("Cannot find jdbc driver");
-        } catch (SQLException e) {
-            e.printStackTrace();
-            logger.error("SQL execution error");
+    protected String driver() { return "org.sqlite.JDBC"; }
+    @Override
+    protected int readerCount() { return dbUri.contains(":memory:") ? 0 : poolSize; }  // 内存库各连接互不可见
+    @Override
+    protected Connection open() throws SQLException {
+        Properties pro = new Properties();
+        pro.put("date_string_format", DATE_FORMAT);
+        Connection connection = DriverManager.getConnection(this.dbUri, pro);
+        connection.setAutoCommit(true);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA foreign_keys = ON;");
+            statement.execute("PRAGMA journal_mode = WAL;");    // 读连接不被写事务阻塞
+            statement.execute("PRAGMA busy_timeout = 5000;");
         }
+        return connection;
+    }
+
+    @Override
+    protected boolean batchKeys() { return false; }    // 驱动只返回最后一行的last_insert_rowid()；事务内逐行执行的开销与批量相近
+    @Override
+    protected String columnsQuery(int tables) {
+        return String.format("SELECT m.name, p.name FROM sqlite_master m JOIN pragma_table_info(m.name) p " +
+                "WHERE m.type = 'table' AND m.name IN (%s);", placeholders(tables));
+    }
+    @Override
+    protected String schemaFingerprint() throws SQLException {   // 任何DDL都会使其递增
+        Object version = acquire("PRAGMA schema_version;");
+        return version==null ? null : version.toString();
+    }
+    @Override
+    public boolean encoded(String table, String column, String type) {  // 列类型只是亲和性，按值的存储类判断
+        Object exists = acquire(String.format("SELECT EXISTS(SELECT 1 FROM `%s` WHERE typeof(`%s`) = 'text');", table, column));
+        return exists==null || ((Number) exists).intValue()==0;
+    }
+    @Override
+    public boolean reencode(String table, String column, String type, String definition, Function<Object, Object> convert) {
+        // BLOB/INTEGER值可原样存入原列，原地改写即可，约束与索引不变
+        return copy(table, column, column, String.format(" AND typeof(`%s`) = 'text'", column), convert)>=0;
+    }
+    @Override
+    public Object timeMark(Timestamp mark) {    // CURRENT_TIMESTAMP存为TEXT，而Timestamp参数绑定为INTEGER毫秒，TEXT恒大于INTEGER
+        return new SimpleDateFormat(DATE_FORMAT).format(mark);  // 与驱动读取时按同一格式、同一时区，可原样往返
+    }
+    @Override
+    public String touchTrigger(String table) {   // 没有ON UPDATE，以触发器在未显式改动update_time的UPDATE后刷新它
+        return String.format("CREATE TRIGGER IF NOT EXISTS `%s_touch` AFTER UPDATE ON `%s` FOR EACH ROW " +
+                "WHEN NEW.update_time IS OLD.update_time BEGIN UPDATE `%s` SET update_time = CURRENT_TIMESTAMP WHERE id = NEW.id; END;",
+                table, table, table);
+    }
+    @Override
+    protected File metadataFile() {
+        if(dbUri.contains(":memory:")) return null;
+        String path = dbUri.substring("jdbc:sqlite://".length());
+        int query = path.indexOf('?');
+        return new File((query<0 ? path : path.substring(0, query)) + ".schema");
     }
 
 }
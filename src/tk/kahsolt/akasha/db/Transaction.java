@@ -0,0 +1,75 @@
+package tk.kahsolt.akasha.db;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+
+public final class Transaction implements AutoCloseable {
+
+    /*
+     *  线程独占的事务，由SQLEngine.transaction()/Akasha.transaction()开启
+     *      try (Transaction tx = akasha.transaction()) { ...; tx.commit(); }
+     *    1.事务期间本线程独占一个写连接，本线程的读写都走该连接
+     *    2.同一线程内嵌套开启时并入外层事务，由最外层提交
+     *    3.未commit()即close()，或事务内有语句执行失败，则整个事务回滚
+     *    4.写库后对缓存中模型的改动(回填的id、快照等)登记为钩子，最外层结束后按提交或回滚执行其一，见SQLEngine.onEnd()
+     */
+
+    private final SQLEngine engine;
+    final Connection connection;
+    private int depth = 1;
+    private boolean committed;      // 当前层已commit()
+    private boolean failed;         // 只能回滚
+    private boolean finished;
+    private final ArrayList<Runnable[]> hooks = new ArrayList<>();  // 各为{提交后, 回滚后}
+
+    Transaction(SQLEngine engine, Connection connection) {
+        this.engine = engine;
+        this.connection = connection;
+    }
+
+    void enter() { depth++; }
+    void fail() { failed = true; }
+    void hook(Runnable committed, Runnable rolledBack) { hooks.add(new Runnable[] { committed, rolledBack }); }
+    void ended(boolean committed) {     // 回滚时逆序撤销
+        for (int i = 0; i < hooks.size(); i++) {
+            Runnable hook = committed ? hooks.get(i)[0] : hooks.get(hooks.size() - 1 - i)[1];
+            if(hook==null) continue;
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        hooks.clear();
+    }
+
+    public boolean commit() {   // 返回是否真正提交，失败过的事务在此回滚
+        if(finished) return false;
+        if(depth>1) {
+            committed = true;
+            return !failed;
+        }
+        finished = true;
+        return engine.end(this, !failed);
+    }
+    public void rollback() {
+        if(finished) return;
+        if(depth>1) {
+            failed = true;
+            return;
+        }
+        finished = true;
+        engine.end(this, false);
+    }
+    @Override
+    public void close() {
+        if(depth>1) {
+            if(!committed) failed = true;   // 内层未提交，整个事务回滚
+            committed = false;
+            depth--;
+            return;
+        }
+        rollback();
+    }
+
+}
@@ -0,0 +1,100 @@
+package tk.kahsolt.akasha.example;
+
+import tk.kahsolt.akasha.Akasha;
+import tk.kahsolt.akasha.model.FieldEntry;
+import tk.kahsolt.akasha.model.Manager;
+import tk.kahsolt.akasha.model.ManagerEntry;
+import tk.kahsolt.akasha.model.Model;
+import tk.kahsolt.akasha.model.ModelEntry;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+@ModelEntry(columnar = true)
+public class Columnar extends Model {
+
+    /*
+     *  列式副本的扫描测试：同一批条件分别在HashSet<Model>上逐个比较字段、和经Filter在列上扫描
+     *    两者的命中数应一致，后者只为命中的行取出模型；不一致时以非0状态退出
+     *    另打印载入缓存前后的堆占用：列式副本是模型之外额外的一份，去掉columnar = true再运行即可对比
+     */
+
+    @ManagerEntry
+    public static Manager objects;
+
+    @FieldEntry
+    public Integer level;
+    @FieldEntry
+    public Double money;
+    @FieldEntry
+    public Timestamp login;
+
+    private static final int MODELS = 100000;
+    private static final int QUERIES = 200;
+    private static final long EPOCH = 1500000000000L;
+
+    public static void main(String[] args) {
+        long heap = usedHeap();
+        Akasha akasha = new Akasha();
+        akasha.register(Columnar.class);
+        akasha.start();
+
+        Random random = new Random();
+        if(Columnar.objects.view().size()<MODELS) {
+            ArrayList<Model> batch = new ArrayList<>();
+            for (int i = Columnar.objects.view().size(); i < MODELS; i++) {
+                Columnar c = new Columnar();
+                c.level = random.nextInt(100);
+                c.money = i % 10 == 0 ? null : random.nextDouble() * 1000;
+                c.login = new Timestamp(EPOCH + random.nextInt(1000000000));
+                batch.add(c);
+            }
+            Columnar.objects.saveAll(batch);
+        }
+        System.out.println(String.format("%d models cached, heap +%.1f MB", Columnar.objects.size(), (usedHeap() - heap) / 1048576.0));
+
+        HashSet<Model> set = Columnar.objects.all();
+        boolean ok = true;
+        for (int round = 0; round < 3; round++) {
+            long seed = random.nextLong(), hits = 0;
+            Random r = new Random(seed);
+            long time = System.currentTimeMillis();
+            for (int i = 0; i < QUERIES; i++) {
+                int level = r.nextInt(100);
+                double money = r.nextDouble() * 1000;
+                long login = EPOCH + r.nextInt(1000000000);
+                for (Model model : set) {
+                    Columnar c = (Columnar) model;
+                    if(c.level!=null && c.level>=level && c.money!=null && c.money<money
+                            && c.login!=null && c.login.getTime()>=login) hits++;
+                }
+            }
+            long scan = System.currentTimeMillis() - time;
+            r = new Random(seed);
+            time = System.currentTimeMillis();
+            for (int i = 0; i < QUERIES; i++) {
+                int level = r.nextInt(100);
+                double money = r.nextDouble() * 1000;
+                long login = EPOCH + r.nextInt(1000000000);
+                hits -= Columnar.objects.filterGreaterEqual("level", level).filterLess("money", money)
+                        .filterGreaterEqual("login", new Timestamp(login)).count();
+            }
+            long columnar = System.currentTimeMillis() - time;
+            System.out.println(String.format("HashSet<Model>: %.2f ms/query, Filter: %.2f ms/query, %s",
+                    scan / (double) QUERIES, columnar / (double) QUERIES, hits==0 ? "OK" : "MISMATCH"));
+            ok &= hits==0;
+        }
+
+        akasha.stop();
+        if(!ok) System.exit(1);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
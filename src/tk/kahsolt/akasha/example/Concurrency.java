@@ -0,0 +1,78 @@
+package tk.kahsolt.akasha.example;
+
+import tk.kahsolt.akasha.db.MySQLEngine;
+import tk.kahsolt.akasha.db.SQLEngine;
+import tk.kahsolt.akasha.db.SQLiteEngine;
+import tk.kahsolt.akasha.db.Transaction;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class Concurrency {
+
+    /*
+     *  连接池与线程独占事务的压力测试
+     *    每个线程在各自的事务里插入一行、再把本线程的所有行加一，每10轮故意不提交(应回滚)
+     *    MySQL上的死锁等语句失败会使commit()回滚并返回false，只按真正提交的轮数核对
+     *    事务间若互相干扰，最终的行数或合计就对不上，此时以非0状态退出
+     *    默认用SQLite，参数给出jdbc:mysql://...地址时改测MySQL
+     */
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean mysql = args.length>0 && args[0].startsWith("jdbc:mysql");
+        SQLEngine engine = mysql ? new MySQLEngine(args[0]) : new SQLiteEngine("concurrency.db");
+        engine.setPoolSize(4);
+        engine.connect();
+        engine.execute("DROP TABLE IF EXISTS Counter;");
+        engine.execute(String.format("CREATE TABLE Counter (id INTEGER PRIMARY KEY %s, worker INTEGER, value INTEGER);",
+                mysql ? "AUTO_INCREMENT" : "AUTOINCREMENT"));
+
+        AtomicInteger reads = new AtomicInteger(), failures = new AtomicInteger();
+        AtomicIntegerArray commits = new AtomicIntegerArray(THREADS);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        long time = System.currentTimeMillis();
+        for (int w = 0; w < THREADS; w++) {
+            int worker = w;
+            pool.submit(() -> {
+                for (int r = 0; r < ROUNDS; r++) {
+                    try (Transaction tx = engine.transaction()) {
+                        engine.execute("INSERT INTO Counter (worker, value) VALUES (?, ?);", worker, 1);
+                        engine.execute("UPDATE Counter SET value = value + 1 WHERE worker = ?;", worker);
+                        if(r % 10 == 0) continue;   // 不提交，close()时回滚
+                        if(tx.commit()) commits.incrementAndGet(worker);
+                        else failures.incrementAndGet();
+                    }
+                    if(engine.acquire("SELECT COUNT(*) FROM Counter WHERE worker = ?;", worker)!=null)    // 读连接
+                        reads.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        System.out.println(String.format("%d threads x %d rounds: %d ms, %d reads, %d failed commits",
+                THREADS, ROUNDS, System.currentTimeMillis() - time, reads.get(), failures.get()));
+
+        // 每轮提交后合计增加1+k(k为本线程当前行数)，K轮后为K+K(K+1)/2
+        boolean ok = true;
+        for (int w = 0; w < THREADS; w++) {
+            long committed = commits.get(w);
+            long expectedSum = committed + committed * (committed + 1) / 2;
+            Number count = (Number) engine.acquire("SELECT COUNT(*) FROM Counter WHERE worker = ?;", w);
+            Number sum = (Number) engine.acquire("SELECT SUM(value) FROM Counter WHERE worker = ?;", w);
+            if(count==null || sum==null || count.longValue()!=committed || sum.longValue()!=expectedSum) {
+                System.out.println(String.format("Worker %d: count=%s sum=%s, expected %d/%d", w, count, sum, committed, expectedSum));
+                ok = false;
+            }
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        engine.disconnect();
+        if(!ok) System.exit(1);
+    }
+
+}
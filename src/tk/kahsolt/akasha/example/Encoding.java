@@ -0,0 +1,94 @@
+package tk.kahsolt.akasha.example;
+
+import tk.kahsolt.akasha.db.Binder;
+import tk.kahsolt.akasha.db.SQLEngine;
+import tk.kahsolt.akasha.db.SQLiteEngine;
+import tk.kahsolt.akasha.model.ModelMapper;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+public class Encoding {
+
+    /*
+     *  紧凑编码(FieldEntry.compact())的读写测试
+     *    同一批UUID/Timestamp分别以CHAR(36)+TIMESTAMP文本、BINARY(16)+BIGINT毫秒写入两张表，再整表读出解码
+     *    两者解码出的值应一致，后者读写都不经字符串；不一致时以非0状态退出
+     */
+
+    private static final int ROWS = 100000;
+
+    public static void main(String[] args) {
+        SQLEngine engine = new SQLiteEngine("encoding.db");
+        engine.connect();
+        engine.execute("DROP TABLE IF EXISTS Text;");
+        engine.execute("DROP TABLE IF EXISTS Compact;");
+        engine.execute("CREATE TABLE Text (id INTEGER PRIMARY KEY AUTOINCREMENT, uuid CHAR(36), login TIMESTAMP);");
+        engine.execute("CREATE TABLE Compact (id INTEGER PRIMARY KEY AUTOINCREMENT, uuid BINARY(16), login BIGINT);");
+
+        Random random = new Random();
+        UUID[] uuids = new UUID[ROWS];
+        Timestamp[] logins = new Timestamp[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            uuids[i] = UUID.randomUUID();
+            logins[i] = new Timestamp(1500000000000L + random.nextInt(1000000000) * 1000L);   // 文本时间戳只到秒
+        }
+        ArrayList<Binder> textRows = new ArrayList<>(), compactRows = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            UUID uuid = uuids[i];
+            Timestamp login = logins[i];
+            textRows.add(ps -> {
+                ps.setString(1, uuid.toString());
+                ps.setTimestamp(2, login);
+            });
+            compactRows.add(ps -> {
+                ps.setBytes(1, ModelMapper.encodeUUID(uuid));
+                ps.setLong(2, login.getTime());
+            });
+        }
+
+        boolean ok = true;
+        for (int round = 0; round < 3; round++) {
+            engine.execute("DELETE FROM Text;");
+            engine.execute("DELETE FROM Compact;");
+            long time = System.currentTimeMillis();
+            engine.insert("INSERT INTO Text (uuid, login) VALUES (?, ?);", textRows);
+            long textWrite = System.currentTimeMillis() - time;
+            time = System.currentTimeMillis();
+            engine.insert("INSERT INTO Compact (uuid, login) VALUES (?, ?);", compactRows);
+            long compactWrite = System.currentTimeMillis() - time;
+
+            time = System.currentTimeMillis();
+            Integer text = engine.stream("SELECT uuid, login FROM Text ORDER BY id;", rs -> {
+                int matched = 0;
+                for (int i = 0; rs.next(); i++) {
+                    UUID uuid = UUID.fromString(rs.getString(1));
+                    Timestamp login = rs.getTimestamp(2);
+                    if(uuid.equals(uuids[i]) && login.equals(logins[i])) matched++;
+                }
+                return matched;
+            });
+            long textRead = System.currentTimeMillis() - time;
+            time = System.currentTimeMillis();
+            Integer compact = engine.stream("SELECT uuid, login FROM Compact ORDER BY id;", rs -> {
+                int matched = 0;
+                for (int i = 0; rs.next(); i++) {
+                    UUID uuid = ModelMapper.decodeUUID(rs.getBytes(1));
+                    Timestamp login = new Timestamp(rs.getLong(2));
+                    if(uuid.equals(uuids[i]) && login.equals(logins[i])) matched++;
+                }
+                return matched;
+            });
+            long compactRead = System.currentTimeMillis() - time;
+            boolean matched = text!=null && compact!=null && text==ROWS && compact==ROWS;
+            System.out.println(String.format("write: text %d ms, compact %d ms; read: text %d ms, compact %d ms; %s",
+                    textWrite, compactWrite, textRead, compactRead, matched ? "OK" : "MISMATCH"));
+            ok &= matched;
+        }
+        engine.disconnect();
+        if(!ok) System.exit(1);
+    }
+
+}
@@ -2,6 +2,7 @@ package tk.kahsolt.akasha.example;
 
 import tk.kahsolt.akasha.Akasha;
 import tk.kahsolt.akasha.model.FieldEntry;
+import tk.kahsolt.akasha.model.LazyText;
 import tk.kahsolt.akasha.model.Manager;
 import tk.kahsolt.akasha.model.ManagerEntry;
 import tk.kahsolt.akasha.model.Model;
@@ -28,8 +29,8 @@ public class Player extends Model {
     public Timestamp online_time;  // stands for a time period in seconds (getTime() makes sense)
     @FieldEntry
     public Timestamp birthday;     // stands for real datetime (toString() makes sense)
-    @FieldEntry(length = 0)
-    public String info_struct;     // a structured info string, parse it by yourself!
+    @FieldEntry
+    public LazyText info_struct;   // a structured info string, parse it by yourself! 首次get()时才从库中载入
 
     public static HashMap<UUID, Player> players;
 
@@ -40,14 +41,14 @@ public class Player extends Model {
     }
 
     private void addItem(String item, int count) {
-        this.info_struct += String.format("%s:%d;", item, count);
+        info_struct.set(info_struct.get() + String.format("%s:%d;", item, count));
     }
 
     @Override
     public void onModelized() {
         // 建一个Hash表方便按键查找
         players = new HashMap<>();
-        for (Model player : Player.objects.all()) {
+        for (Model player : Player.objects.view()) {
             players.put(((Player)player).uuid, (Player) player);
         }
     }
@@ -80,7 +81,7 @@ public class Player extends Model {
         cal.set(2007, Calendar.APRIL,1);
         me.birthday = new Timestamp(cal.getTime().getTime());
         // 处理结构化字符串
-        me.info_struct = "bread:5;stone:20;";
+        me.info_struct = new LazyText("bread:5;stone:20;");
         me.addItem("coal", 10); // me.removeItem("gold", 5); 自己解析字符串我懒得写了:)
         me.save();
 
@@ -7,6 +7,7 @@ import tk.kahsolt.akasha.model.ManagerEntry;
 import tk.kahsolt.akasha.model.Model;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.UUID;
@@ -81,7 +82,7 @@ public class Pressure extends Model {
         boolean doInsert = false;
         if(doInsert) {
             time = System.currentTimeMillis();
-            Pressure.beginUpdate();
+            ArrayList<Model> batch = new ArrayList<>();
             for (int i = 0; i < 5000; i++) {
                 Pressure p = new Pressure();
                 p.uuid = UUID.randomUUID();
@@ -101,9 +102,9 @@ public class Pressure extends Model {
                 p.ts1 = new Timestamp(random.nextLong());
                 p.ts2 = new Timestamp(random.nextLong());
                 p.ts3 = new Timestamp(random.nextLong());
-                p.save();
+                batch.add(p);
             }
-            Pressure.endUpdate();
+            Pressure.objects.saveAll(batch);   // 批量INSERT，主键取自getGeneratedKeys()
             System.out.println(String.format("Bulk INSERT: %d", System.currentTimeMillis()-time));
             System.out.println("Count = " + Pressure.objects.all().size());
         }
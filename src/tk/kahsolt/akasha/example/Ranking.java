@@ -0,0 +1,96 @@
+package tk.kahsolt.akasha.example;
+
+import tk.kahsolt.akasha.Akasha;
+import tk.kahsolt.akasha.model.FieldEntry;
+import tk.kahsolt.akasha.model.Manager;
+import tk.kahsolt.akasha.model.ManagerEntry;
+import tk.kahsolt.akasha.model.Model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+public class Ranking extends Model {
+
+    /*
+     *  字典编码(FieldEntry.dictionary())测试：几十万行只有几种取值的String字段
+     *    载入后每种取值在缓存中只有一个实例；同一批等值/不等条件分别在HashSet<Model>上逐个比较字符串、
+     *    和经Filter比较编码，两者的命中数应一致；不一致时以非0状态退出
+     */
+
+    @ManagerEntry
+    public static Manager objects;
+
+    @FieldEntry(length = 16, dictionary = true)
+    public String rank;
+    @FieldEntry(length = 16, dictionary = true)
+    public String world;
+    @FieldEntry(length = 16, dictionary = true)
+    public String faction;
+    @FieldEntry(length = 8, dictionary = true)
+    public String locale;
+
+    private static final int MODELS = 300000;
+    private static final int QUERIES = 200;
+    private static final String[] RANKS = { "bronze", "silver", "gold", "platinum", "diamond", "master" };
+    private static final String[] FACTIONS = { "alliance", "horde", "neutral" };
+    private static final String[] LOCALES = { "zh_CN", "en_US", "ja_JP", "ko_KR", "de_DE", "fr_FR", "ru_RU" };
+
+    public static void main(String[] args) {
+        Akasha akasha = new Akasha();
+        akasha.register(Ranking.class);
+        akasha.start();
+
+        Random random = new Random();
+        if(Ranking.objects.view().size()<MODELS) {
+            ArrayList<Model> batch = new ArrayList<>();
+            for (int i = Ranking.objects.view().size(); i < MODELS; i++) {
+                Ranking r = new Ranking();
+                r.rank = RANKS[random.nextInt(RANKS.length)];
+                r.world = "world-" + (random.nextInt(40) + 1);
+                r.faction = FACTIONS[random.nextInt(FACTIONS.length)];
+                r.locale = LOCALES[random.nextInt(LOCALES.length)];
+                batch.add(r);
+            }
+            Ranking.objects.saveAll(batch);
+        }
+
+        HashSet<Model> set = Ranking.objects.all();
+        IdentityHashMap<String, Boolean> instances = new IdentityHashMap<>();
+        for (Model model : set) {
+            Ranking r = (Ranking) model;
+            for (String value : new String[] { r.rank, r.world, r.faction, r.locale }) if(value!=null) instances.put(value, true);
+        }
+        System.out.println(String.format("%d rows, %d distinct String instances in 4 fields", set.size(), instances.size()));
+
+        boolean ok = true;
+        for (int round = 0; round < 3; round++) {
+            long seed = random.nextLong(), hits = 0;
+            Random r = new Random(seed);
+            long time = System.currentTimeMillis();
+            for (int i = 0; i < QUERIES; i++) {
+                String rank = RANKS[r.nextInt(RANKS.length)], locale = LOCALES[r.nextInt(LOCALES.length)];
+                for (Model model : set) {
+                    Ranking k = (Ranking) model;
+                    if(rank.equals(k.rank) && k.locale!=null && !locale.equals(k.locale)) hits++;
+                }
+            }
+            long scan = System.currentTimeMillis() - time;
+            r = new Random(seed);
+            time = System.currentTimeMillis();
+            for (int i = 0; i < QUERIES; i++) {
+                String rank = RANKS[r.nextInt(RANKS.length)], locale = LOCALES[r.nextInt(LOCALES.length)];
+                hits -= Ranking.objects.filterEqual("rank", rank).filterNotEqual("locale", locale).count();
+            }
+            long codes = System.currentTimeMillis() - time;
+            System.out.println(String.format("HashSet<Model>: %.2f ms/query, dictionary codes: %.2f ms/query, %s",
+                    scan / (double) QUERIES, codes / (double) QUERIES, hits==0 ? "OK" : "MISMATCH"));
+            ok &= hits==0;
+        }
+
+        akasha.stop();
+        if(!ok) System.exit(1);
+    }
+
+}
@@ -0,0 +1,103 @@
+package tk.kahsolt.akasha.example;
+
+import tk.kahsolt.akasha.Akasha;
+import tk.kahsolt.akasha.model.FieldEntry;
+import tk.kahsolt.akasha.model.Manager;
+import tk.kahsolt.akasha.model.ManagerEntry;
+import tk.kahsolt.akasha.model.Model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Scaling extends Model {
+
+    /*
+     *  缓存读扩展性测试：1个写线程不停地save()/remove()，1~2N个读线程做Filter全集扫描
+     *    读操作无锁、基于快照，吞吐量应随核数近似线性增长，且不抛ConcurrentModificationException
+     *    读线程出错或写回未能全部落库时以非0状态退出
+     */
+
+    @ManagerEntry
+    public static Manager objects;
+
+    @FieldEntry
+    public Integer level;
+    @FieldEntry
+    public Double money;
+
+    private static final int MODELS = 10000;
+    private static final long DURATION = 3000;
+
+    public static void main(String[] args) throws InterruptedException {
+        Akasha akasha = new Akasha();
+        akasha.register(Scaling.class);
+        akasha.enableWriteBehind();     // 写线程不等待数据库
+        akasha.start();
+
+        Random random = new Random();
+        if(Scaling.objects.view().size()<MODELS) {
+            ArrayList<Model> batch = new ArrayList<>();
+            for (int i = Scaling.objects.view().size(); i < MODELS; i++) {
+                Scaling s = new Scaling();
+                s.level = random.nextInt(100);
+                s.money = random.nextDouble() * 1000;
+                batch.add(s);
+            }
+            Scaling.objects.saveAll(batch);
+            akasha.flush();
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        long failures = 0;
+        for (int readers = 1; readers <= 2 * cores; readers *= 2) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong scans = new AtomicLong();
+            AtomicLong errors = new AtomicLong();
+            Thread writer = new Thread(() -> {
+                Random r = new Random();
+                ArrayDeque<Scaling> added = new ArrayDeque<>();
+                while (running.get()) {
+                    if(added.size()<100 && r.nextBoolean()) {
+                        Scaling s = new Scaling();
+                        s.level = r.nextInt(100);
+                        s.save();
+                        added.add(s);
+                    } else if(!added.isEmpty()) added.poll().remove();
+                }
+                for (Scaling s : added) s.remove();
+            });
+            Thread[] threads = new Thread[readers];
+            for (int i = 0; i < readers; i++) {
+                threads[i] = new Thread(() -> {
+                    Random r = new Random();
+                    while (running.get()) {
+                        try {
+                            Scaling.objects.filterGreaterEqual("level", r.nextInt(100))
+                                    .filterLess("money", 500).count();
+                            scans.incrementAndGet();
+                        } catch (RuntimeException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            writer.start();
+            for (Thread thread : threads) thread.start();
+            Thread.sleep(DURATION);
+            running.set(false);
+            writer.join();
+            for (Thread thread : threads) thread.join();
+            System.out.println(String.format("%2d readers: %8.1f scans/s, %d errors",
+                    readers, scans.get() * 1000.0 / DURATION, errors.get()));
+            failures += errors.get();
+        }
+
+        boolean flushed = akasha.flush();
+        akasha.stop();
+        if(failures>0 || !flushed) System.exit(1);
+    }
+
+}
@@ -0,0 +1,87 @@
+package tk.kahsolt.akasha.example;
+
+import tk.kahsolt.akasha.Akasha;
+import tk.kahsolt.akasha.db.MySQLEngine;
+import tk.kahsolt.akasha.db.SQLEngine;
+import tk.kahsolt.akasha.db.SQLiteEngine;
+import tk.kahsolt.akasha.model.FieldEntry;
+import tk.kahsolt.akasha.model.Manager;
+import tk.kahsolt.akasha.model.ManagerEntry;
+import tk.kahsolt.akasha.model.Model;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class Sharing extends Model {
+
+    /*
+     *  两个进程共用一个库的增量刷新测试：先启动 "reader"，再于数秒内启动 "writer"；第二个参数可给出库地址(默认sharing.db)
+     *    writer不停地增删改，结束时打印缓存中的合计；reader定期refresh()，每秒打印一次
+     *    reader最后直接查库核对：行数、合计及经索引查得的行数应与库中一致，否则以非0状态退出
+     */
+
+    @ManagerEntry
+    public static Manager objects;
+
+    @FieldEntry(index = true)
+    public Integer level;
+
+    private static final long DURATION = 10000;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean writer = args.length>0 && args[0].equals("writer");
+        String uri = args.length>1 ? args[1] : "sharing.db";
+        Akasha akasha = new Akasha(uri);
+        akasha.register(Sharing.class);
+        if(!writer) akasha.enableRefresh(500);
+        akasha.start();
+
+        Random random = new Random();
+        long end = System.currentTimeMillis() + DURATION;
+        while (System.currentTimeMillis()<end + (writer ? 0 : 5000)) {
+            if(writer) {
+                ArrayList<Model> models = new ArrayList<>(Sharing.objects.view());
+                int op = random.nextInt(10);
+                if(op<3 || models.isEmpty()) {
+                    Sharing s = new Sharing();
+                    s.level = random.nextInt(100);
+                    s.save();
+                } else if(op<4) models.get(random.nextInt(models.size())).remove();
+                else {
+                    Sharing s = (Sharing) models.get(random.nextInt(models.size()));
+                    s.level = random.nextInt(100);
+                    s.save();
+                }
+                Thread.sleep(10);
+            } else {
+                Thread.sleep(1000);
+                report("reader");
+            }
+        }
+        int[] cached = report(writer ? "writer" : "reader");
+        akasha.stop();
+        if(writer) return;
+
+        SQLEngine engine = uri.startsWith("jdbc:mysql") ? new MySQLEngine(uri) : new SQLiteEngine(uri);
+        engine.connect();
+        Number count = (Number) engine.acquire("SELECT COUNT(*) FROM Sharing;");
+        Number sum = (Number) engine.acquire("SELECT SUM(level) FROM Sharing;");
+        engine.disconnect();
+        boolean ok = count!=null && count.intValue()==cached[0] && cached[2]==cached[0]
+                && (sum==null ? cached[1]==0 : sum.intValue()==cached[1]);
+        System.out.println(String.format("database: %s rows, sum %s, %s", count, sum, ok ? "OK" : "FAILED"));
+        if(!ok) System.exit(1);
+    }
+
+    private static int[] report(String role) {
+        int count = 0, sum = 0, indexed = 0;
+        for (Model model : Sharing.objects.view()) {
+            count++;
+            sum += ((Sharing) model).level;
+        }
+        for (int level = 0; level < 100; level++) indexed += Sharing.objects.filterEqual("level", level).count();
+        System.out.println(String.format("%s: %d rows, sum %d, %d via index", role, count, sum, indexed));
+        return new int[] { count, sum, indexed };
+    }
+
+}
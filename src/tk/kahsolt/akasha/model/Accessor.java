@@ -0,0 +1,119 @@
+package tk.kahsolt.akasha.model;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+public final class Accessor {
+
+    /*
+     *  模型字段的存取器，由Akasha.start()为每个模型一次性建表(与fieldsets同序)
+     *    以MethodHandle取代热路径上的Field.get()/set()，访问检查只在构建时做一次
+     *    若模型有生成的映射器，则句柄直接绑定到映射器的get()/set()上，不经反射
+     *    原始类型的字段另有不装箱的getLong()/getDouble()/setLong()/setDouble()，直接存取字段
+     *    字典编码的String字段(FieldEntry.dictionary())在此持有该字段的Dictionary
+     */
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Model.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Model.class, Object.class);
+    private static final MethodType LONG_GETTER = MethodType.methodType(long.class, Model.class);
+    private static final MethodType LONG_SETTER = MethodType.methodType(void.class, Model.class, long.class);
+    private static final MethodType DOUBLE_GETTER = MethodType.methodType(double.class, Model.class);
+    private static final MethodType DOUBLE_SETTER = MethodType.methodType(void.class, Model.class, double.class);
+
+    public final Field field;
+    public final String name;
+    public final Class<?> type;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle primitiveGetter;     // int/long/boolean为long(boolean为1/0)，float/double为double，其余类型为null
+    private final MethodHandle primitiveSetter;
+    final Dictionary dictionary;                    // 非字典字段为null
+
+    public Accessor(Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        this.field = field;
+        this.name = field.getName();
+        this.type = field.getType();
+        this.getter = lookup.unreflectGetter(field).asType(GETTER);
+        this.setter = lookup.unreflectSetter(field).asType(SETTER);
+        this.primitiveGetter = primitive(field, true);
+        this.primitiveSetter = primitive(field, false);
+        this.dictionary = dictionary(field);
+    }
+    public Accessor(Field field, ModelMapper<?> mapper, int index) throws NoSuchMethodException, IllegalAccessException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        this.field = field;
+        this.name = field.getName();
+        this.type = field.getType();
+        MethodHandle getter = lookup.findVirtual(ModelMapper.class, "get",
+                MethodType.methodType(Object.class, Model.class, int.class)).bindTo(mapper);
+        MethodHandle setter = lookup.findVirtual(ModelMapper.class, "set",
+                MethodType.methodType(void.class, Model.class, int.class, Object.class)).bindTo(mapper);
+        this.getter = MethodHandles.insertArguments(getter, 1, index);
+        this.setter = MethodHandles.insertArguments(setter, 1, index);
+        this.primitiveGetter = primitive(field, true);
+        this.primitiveSetter = primitive(field, false);
+        this.dictionary = dictionary(field);
+    }
+    private static Dictionary dictionary(Field field) {
+        FieldEntry fe = field.getDeclaredAnnotation(FieldEntry.class);
+        return fe!=null && fe.dictionary() && field.getType()==String.class ? new Dictionary() : null;
+    }
+    private static MethodHandle primitive(Field field, boolean getter) throws IllegalAccessException {
+        Class<?> type = field.getType();
+        if(!type.isPrimitive()) return null;
+        field.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        boolean floating = type==float.class || type==double.class;
+        if(getter) return MethodHandles.explicitCastArguments(lookup.unreflectGetter(field), floating ? DOUBLE_GETTER : LONG_GETTER);
+        return MethodHandles.explicitCastArguments(lookup.unreflectSetter(field), floating ? DOUBLE_SETTER : LONG_SETTER);
+    }
+
+    public Object get(Model model) {
+        try {
+            return (Object) getter.invokeExact(model);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed reading field '%s'.", name), e);
+        }
+    }
+    public void set(Model model, Object value) {
+        try {
+            setter.invokeExact(model, value);
+        } catch (Throwable e) {     // 含类型不符时的ClassCastException
+            throw new IllegalStateException(String.format("Failed writing field '%s'.", name), e);
+        }
+    }
+
+    public long getLong(Model model) {
+        try {
+            return (long) primitiveGetter.invokeExact(model);
+        } catch (Throwable e) {     // 含字段类型不符时的异常
+            throw new IllegalStateException(String.format("Failed reading field '%s' as long.", name), e);
+        }
+    }
+    public double getDouble(Model model) {
+        try {
+            return (double) primitiveGetter.invokeExact(model);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed reading field '%s' as double.", name), e);
+        }
+    }
+    public void setLong(Model model, long value) {     // int截断，boolean取最低位
+        try {
+            primitiveSetter.invokeExact(model, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed writing field '%s' as long.", name), e);
+        }
+    }
+    public void setDouble(Model model, double value) {
+        try {
+            primitiveSetter.invokeExact(model, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed writing field '%s' as double.", name), e);
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package tk.kahsolt.akasha.model;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.UUID;
+
+public final class CacheFile {
+
+    private static final Logger logger = Logger.getLogger(CacheFile.class);
+
+    /*
+     *  模型缓存的二进制快照，由Akasha.enableSnapshot()启用
+     *    1.stop()时把各模型的缓存整表写出，附带每表的高水位(最大id与最大update_time)
+     *    2.start()时映射(mmap)该文件直接构建模型，再只查询id或update_time超过高水位的行，并按行数核对删除
+     *    3.库地址、结构指纹或模型字段签名不一致的表，退回到整表模型化；方言给不出结构指纹时不写也不读快照
+     *  文件布局：MAGIC, 库地址, 结构指纹, 表数, 各表{表名, 签名, 行数, 最大id, 最大update_time, 字节数, 各行}
+     *  各行为id, create_time, update_time及各自定义字段(上次落库时的值)，每个值以类型标记开头
+     */
+
+    private static final int MAGIC = 0x414B5331;     // "AKS1"
+    private static final byte NULL = 0, INTEGER = 1, DOUBLE = 2, STRING = 3, UUID_ = 4, TIMESTAMP = 5, LAZY = 6,
+            LONG = 7, FLOAT = 8, BOOLEAN = 9, BYTES = 10;
+
+    private final HashMap<String, Section> sections = new HashMap<>();
+
+    private CacheFile() { }
+
+    public static CacheFile open(File file, String uri, String fingerprint) {
+        if(!file.isFile()) return null;
+        if(fingerprint==null) {     // 无从判断库结构是否变过，不信任快照
+            logger.info("Schema fingerprint unavailable, ignored snapshot file " + file);
+            return null;
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());   // 关闭通道后映射仍有效
+            if(buffer.getInt()!=MAGIC) {
+                logger.warn("Bad snapshot file " + file);
+                return null;
+            }
+            if(!readString(buffer).equals(uri) || !readString(buffer).equals(fingerprint)) {
+                logger.info("Database changed since snapshot, ignored " + file);
+                return null;
+            }
+            CacheFile cacheFile = new CacheFile();
+            int tables = buffer.getInt();
+            for (int i = 0; i < tables; i++) {
+                Section section = new Section(readString(buffer), readString(buffer), buffer.getInt(), buffer.getInt(),
+                        (Timestamp) readValue(buffer));
+                int length = buffer.getInt();
+                ByteBuffer data = buffer.slice();
+                data.limit(length);
+                section.data = data;
+                buffer.position(buffer.position() + length);
+                cacheFile.sections.put(section.table, section);
+            }
+            return cacheFile;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            logger.warn("Failed reading snapshot file " + file);
+            return null;
+        }
+    }
+    public static void write(File file, String uri, String fingerprint, Collection<Class<? extends Model>> models) {
+        if(fingerprint==null) {     // 下次启动也无法校验，不写
+            logger.warn("Schema fingerprint unavailable, snapshot not written.");
+            return;
+        }
+        long time = System.currentTimeMillis();
+        ArrayList<Class<? extends Model>> classes = new ArrayList<>();    // 按需载入的模型缓存不完整，不写快照
+        for (Class<? extends Model> clazz : models) if(Model.cacheMode(clazz)==CacheMode.ALL) classes.add(clazz);
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            writeString(out, uri);
+            writeString(out, fingerprint);
+            out.writeInt(classes.size());
+            for (Class<? extends Model> clazz : classes) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream rows = new DataOutputStream(bytes);
+                int count = 0, maxId = 0;
+                Timestamp maxUpdate = null;
+                for (Model model : Model.cached(clazz)) {
+                    Object[] row = Model.row(model);
+                    if(row[0]==null) continue;      // 尚未落库的
+                    for (Object value : row) writeValue(rows, value);
+                    count++;
+                    maxId = Math.max(maxId, (Integer) row[0]);
+                    Timestamp update = (Timestamp) row[2];
+                    if(update!=null && (maxUpdate==null || update.after(maxUpdate))) maxUpdate = update;
+                }
+                rows.flush();
+                writeString(out, clazz.getSimpleName());
+                writeString(out, Model.signature(clazz));
+                out.writeInt(count);
+                out.writeInt(maxId);
+                writeValue(out, maxUpdate);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            logger.error("Failed writing snapshot file " + file);
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.error("Failed replacing snapshot file " + file);
+            return;
+        }
+        logger.info(String.format("Snapshot of %d models written in %d ms.", classes.size(), System.currentTimeMillis() - time));
+    }
+
+    Section section(String table, String signature) {
+        Section section = sections.get(table);
+        return section!=null && section.signature.equals(signature) ? section : null;
+    }
+
+    static final class Section {
+
+        final String table;
+        final String signature;
+        final int rows;
+        final int maxId;
+        final Timestamp maxUpdate;
+        private ByteBuffer data;
+
+        private Section(String table, String signature, int rows, int maxId, Timestamp maxUpdate) {
+            this.table = table;
+            this.signature = signature;
+            this.rows = rows;
+            this.maxId = maxId;
+            this.maxUpdate = maxUpdate;
+        }
+
+        ByteBuffer reader() { return data.duplicate(); }    // 各线程各取一个，互不影响读位置
+        static Object[] next(ByteBuffer reader, int width) {
+            Object[] row = new Object[width];
+            for (int i = 0; i < width; i++) row[i] = readValue(reader);
+            return row;
+        }
+
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if(value==null) out.writeByte(NULL);
+        else if(value instanceof Integer) { out.writeByte(INTEGER); out.writeInt((Integer) value); }
+        else if(value instanceof Double) { out.writeByte(DOUBLE); out.writeDouble((Double) value); }
+        else if(value instanceof String) { out.writeByte(STRING); writeString(out, (String) value); }
+        else if(value instanceof Long) { out.writeByte(LONG); out.writeLong((Long) value); }
+        else if(value instanceof Float) { out.writeByte(FLOAT); out.writeFloat((Float) value); }
+        else if(value instanceof Boolean) { out.writeByte(BOOLEAN); out.writeBoolean((Boolean) value); }
+        else if(value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        }
+        else if(value instanceof UUID) {
+            out.writeByte(UUID_);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else if(value instanceof Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if(value instanceof LazyText) out.writeByte(LAZY);   // 延迟列不入快照，载入后按需查询
+        else throw new IOException(String.format("Type '%s' not supported, see TypeMap!", value.getClass()));
+    }
+    private static Object readValue(ByteBuffer buffer) {
+        switch (buffer.get()) {
+            case NULL: case LAZY: return null;
+            case INTEGER: return buffer.getInt();
+            case DOUBLE: return buffer.getDouble();
+            case STRING: return readString(buffer);
+            case LONG: return buffer.getLong();
+            case FLOAT: return buffer.getFloat();
+            case BOOLEAN: return buffer.get()!=0;
+            case BYTES:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return bytes;
+            case UUID_: return new UUID(buffer.getLong(), buffer.getLong());
+            case TIMESTAMP:
+                Timestamp ts = new Timestamp(buffer.getLong());
+                ts.setNanos(buffer.getInt());
+                return ts;
+            default: throw new IllegalStateException("Corrupted snapshot file.");
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package tk.kahsolt.akasha.model;
+
+public enum CacheMode {
+
+    /*
+     *  模型的缓存策略，由@ModelEntry(cache = ...)设置
+     *    ALL       启动时整表载入，常驻内存(默认)
+     *    LAZY      启动时不载入，Manager.get()按id或unique字段未命中时从库中载入，之后常驻
+     *    BOUNDED   同LAZY，但只保留capacity个最近访问的模型，或淘汰ttl毫秒内未访问的模型
+     *  LAZY/BOUNDED下filter及all()/view()只作用于已载入的模型
+     */
+
+    ALL,
+    LAZY,
+    BOUNDED
+
+}
@@ -0,0 +1,229 @@
+package tk.kahsolt.akasha.model;
+
+import tk.kahsolt.akasha.model.Manager.CompareOperator;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.function.Predicate;
+
+final class Columns {
+
+    /*
+     *  缓存的列式副本，由@ModelEntry(columnar = true)启用；只为加速Filter扫描，不减少堆占用
+     *    模型对象仍是缓存本体(调用方取回、修改并save()的是它)，数组是额外的一份，每行每列多占4~8字节
+     *    1.数值、逻辑与时间字段各存为int[](int/Integer/boolean/Boolean)、long[](long/Long/Timestamp毫秒)、
+     *      double[](float/double/Double)加null位图，以Model.slot为下标
+     *      字典编码的String字段(FieldEntry.dictionary())不论是否columnar，总以int[]存其编码，只服务等值/不等条件
+     *    2.由Store在其锁内随增删维护，save()后经Manager.indexUpdate()刷新；与索引相同，只反映已save()的状态
+     *    3.Filter先在数组上紧凑扫描得出命中位图，只取出命中位置上的模型；扫描无锁，与并发写之间为弱一致
+     *      区间的换算与Predicates共用；命中只是候选，Filter再以谓词在当前值上逐个复核
+     */
+
+    private static final int INT = 0, DOUBLE = 1, LONG = 2, CODE = 3;
+
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private volatile Column[] columns;      // 扩容时整体替换，读者取一次引用即可
+    private int capacity;
+
+    Columns(Collection<Accessor> fields, boolean columnar) {   // columnar为false时只含字典字段
+        ArrayList<Column> columns = new ArrayList<>();
+        for (Accessor field : fields) {
+            Class<?> type = Index.boxed(field.type);
+            int kind = field.dictionary!=null ? CODE : !columnar ? -1
+                    : type==Integer.class || type==Boolean.class ? INT
+                    : type==Long.class || type==Timestamp.class ? LONG
+                    : type==Double.class || type==Float.class ? DOUBLE : -1;
+            if(kind<0) continue;
+            positions.put(field.name, columns.size());
+            columns.add(new Column(field, kind, 0));
+        }
+        this.columns = columns.toArray(new Column[0]);
+    }
+
+    boolean isEmpty() { return positions.isEmpty(); }
+    int bytesPerRow() {     // 估算每行额外占用的堆，含null位图
+        int bytes = 0;
+        for (Column column : columns) bytes += column.kind==INT || column.kind==CODE ? 4 : 8;
+        return bytes + (columns.length + 7) / 8;
+    }
+
+    // 维护：只由Store在锁内调用
+    void set(int slot, Model model) {
+        if(slot>=capacity) grow(slot + 1);
+        for (Column column : columns) column.write(slot, column.field.get(model));
+    }
+    void move(int from, int to) {
+        for (Column column : columns) column.copy(from, to);
+    }
+    private void grow(int minimum) {
+        int capacity = Math.max(minimum, Math.max(64, this.capacity + (this.capacity >> 1)));
+        Column[] grown = new Column[columns.length];
+        for (int i = 0; i < grown.length; i++) grown[i] = columns[i].grown(capacity);
+        columns = grown;
+        this.capacity = capacity;
+    }
+
+    private static final class Column {
+
+        final Accessor field;
+        final int kind;
+        final int[] ints;
+        final double[] doubles;
+        final long[] longs;
+        final long[] nulls;     // 置位为null
+
+        private Column(Accessor field, int kind, int capacity) {
+            this.field = field;
+            this.kind = kind;
+            ints = kind==INT || kind==CODE ? new int[capacity] : null;
+            doubles = kind==DOUBLE ? new double[capacity] : null;
+            longs = kind==LONG ? new long[capacity] : null;
+            nulls = new long[(capacity + 63) >>> 6];
+        }
+        private Column grown(int capacity) {
+            Column column = new Column(field, kind, capacity);
+            if(ints!=null) System.arraycopy(ints, 0, column.ints, 0, ints.length);
+            if(doubles!=null) System.arraycopy(doubles, 0, column.doubles, 0, doubles.length);
+            if(longs!=null) System.arraycopy(longs, 0, column.longs, 0, longs.length);
+            System.arraycopy(nulls, 0, column.nulls, 0, nulls.length);
+            return column;
+        }
+
+        private void write(int slot, Object value) {
+            if(value==null) nulls[slot >>> 6] |= 1L << slot;
+            else {
+                switch (kind) {
+                    case INT: ints[slot] = value instanceof Boolean ? (Boolean) value ? 1 : 0 : (Integer) value; break;
+                    case CODE: ints[slot] = field.dictionary.code((String) value); break;
+                    case DOUBLE: doubles[slot] = ((Number) value).doubleValue(); break;
+                    case LONG: longs[slot] = value instanceof Timestamp ? ((Timestamp) value).getTime() : (Long) value; break;
+                }
+                nulls[slot >>> 6] &= ~(1L << slot);
+            }
+        }
+        private void copy(int from, int to) {
+            switch (kind) {
+                case INT: case CODE: ints[to] = ints[from]; break;
+                case DOUBLE: doubles[to] = doubles[from]; break;
+                case LONG: longs[to] = longs[from]; break;
+            }
+            if((nulls[from >>> 6] & 1L << from)!=0) nulls[to >>> 6] |= 1L << to;
+            else nulls[to >>> 6] &= ~(1L << to);
+        }
+
+    }
+
+    // 扫描
+    static final class Scan {
+
+        private static final int NONE = 0, NULL = 1, NOT_NULL = 2, RANGE = 3, EXCLUDE = 4;
+
+        private final int column;
+        private final int mode;
+        private long lo, hi;            // INT/LONG/CODE列的闭区间，EXCLUDE时lo为排除的值
+        private double dlo, dhi;        // DOUBLE列同上
+
+        private Scan(int column, int mode) {
+            this.column = column;
+            this.mode = mode;
+        }
+
+        private void apply(Column column, long[] hits, int size) {
+            switch (mode) {
+                case NONE: Arrays.fill(hits, 0); return;
+                case NULL: for (int w = 0; w < hits.length; w++) hits[w] &= column.nulls[w]; return;
+                case NOT_NULL: for (int w = 0; w < hits.length; w++) hits[w] &= ~column.nulls[w]; return;
+            }
+            boolean exclude = mode==EXCLUDE;
+            for (int w = 0; w < hits.length; w++) {
+                long bits = hits[w] & ~column.nulls[w];
+                if(bits==0) {
+                    hits[w] = 0;
+                    continue;
+                }
+                int base = w << 6, end = Math.min(64, size - base);
+                long keep = 0;
+                switch (column.kind) {
+                    case INT: case CODE: {
+                        int[] values = column.ints;
+                        for (int b = 0; b < end; b++) {
+                            int v = values[base + b];
+                            if(v>=lo && v<=hi) keep |= 1L << b;
+                        }
+                        break;
+                    }
+                    case DOUBLE: {
+                        double[] values = column.doubles;
+                        for (int b = 0; b < end; b++) {
+                            double v = values[base + b];
+                            if(v>=dlo && v<=dhi) keep |= 1L << b;
+                        }
+                        break;
+                    }
+                    case LONG: {
+                        long[] values = column.longs;
+                        for (int b = 0; b < end; b++) {
+                            long v = values[base + b];
+                            if(v>=lo && v<=hi) keep |= 1L << b;
+                        }
+                        break;
+                    }
+                }
+                hits[w] = bits & (exclude ? ~keep : keep);
+            }
+        }
+
+    }
+    Scan compile(String field, CompareOperator operator, Predicate<Model> predicate, Object... values) {  // 不能由列服务的条件返回null
+        Integer position = positions.get(field);
+        if(position==null || operator==CompareOperator.LIKE) return null;
+        if(predicate==Predicates.NONE) return new Scan(position, Scan.NONE);   // 右值为null或无法转换
+        Column column = columns[position];
+        if(operator==CompareOperator.NULL) return new Scan(position, Scan.NULL);
+        if(operator==CompareOperator.NOT_NULL) return new Scan(position, Scan.NOT_NULL);
+        boolean exclude = operator==CompareOperator.NOT_EQUAL;
+        if(exclude) operator = CompareOperator.EQUAL;   // 右值不落在字段的取值上时等同NOT_NULL
+        if(column.kind==CODE) {
+            if(operator!=CompareOperator.EQUAL) return null;    // 区间条件仍逐个比较字符串
+            int code = column.field.dictionary.lookup(values[0].toString());
+            if(code<0) return new Scan(position, exclude ? Scan.NOT_NULL : Scan.NONE);  // 从未出现过的值
+            Scan scan = new Scan(position, exclude ? Scan.EXCLUDE : Scan.RANGE);
+            scan.lo = scan.hi = code;
+            return scan;
+        }
+        if(column.kind==DOUBLE) {
+            double[] range = Predicates.floatingRange(column.field.type, operator, values);
+            if(range==null) return new Scan(position, exclude ? Scan.NOT_NULL : Scan.NONE);
+            Scan scan = new Scan(position, exclude ? Scan.EXCLUDE : Scan.RANGE);
+            scan.dlo = range[0];
+            scan.dhi = range[1];
+            return scan;
+        }
+        Class<?> type = column.field.type;
+        long[] range = type==Integer.class ? Predicates.integerRange(operator, values)
+                : type==Timestamp.class ? Predicates.timestampRange(operator, values)
+                : Predicates.integralRange(type, operator, values);
+        if(range==null) return new Scan(position, exclude ? Scan.NOT_NULL : Scan.NONE);
+        Scan scan = new Scan(position, exclude ? Scan.EXCLUDE : Scan.RANGE);
+        scan.lo = range[0];
+        scan.hi = range[1];
+        return scan;
+    }
+    ArrayList<Model> select(Store.Snapshot snapshot, List<Scan> scans) {   // 各扫描求交，取出命中位置上的模型作为候选
+        int size = snapshot.size();
+        long[] hits = new long[(size + 63) >>> 6];
+        Arrays.fill(hits, -1L);
+        if((size & 63)!=0) hits[hits.length - 1] = (1L << size) - 1;
+        Column[] columns = this.columns;
+        for (Scan scan : scans) scan.apply(columns[scan.column], hits, size);
+        ArrayList<Model> results = new ArrayList<>();
+        for (int w = 0; w < hits.length; w++) {
+            for (long bits = hits[w]; bits!=0; bits &= bits - 1) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                results.add(snapshot.get(slot));    // 快照之后被移走的，列上已是别的模型，由Filter复核剔除
+            }
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,45 @@
+package tk.kahsolt.akasha.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class Dictionary {
+
+    /*
+     *  低基数String字段的字典，由@FieldEntry(dictionary = true)启用，每个字段一个(挂在Accessor上)
+     *    1.载入与保存时字段值换成字典中的同值实例，相同的值在缓存中只留一个String
+     *    2.每个值有一个非负int编码，缓存的列式副本(Columns)以编码存此字段，filterEqual/filterNotEqual只比较编码
+     *    3.只增不减：值不再被任何模型引用后仍留在字典里，不适用于取值无限的字段
+     *  读者无锁，新值由写者在锁内登记
+     */
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];     // 下标为编码
+    private int size;
+
+    String intern(String value) {   // 同值实例，首次出现的值登记为新编码
+        if(value==null) return null;
+        Integer code = codes.get(value);
+        int c = code!=null ? code : register(value);    // 先登记再取数组，登记可能扩容
+        return values[c];
+    }
+    int code(String value) {        // null为-1
+        if(value==null) return -1;
+        Integer code = codes.get(value);
+        return code!=null ? code : register(value);
+    }
+    int lookup(String value) {      // 只查不登记，未出现过的值为-1
+        Integer code = codes.get(value);
+        return code!=null ? code : -1;
+    }
+
+    private synchronized int register(String value) {
+        Integer code = codes.get(value);
+        if(code!=null) return code;
+        if(size==values.length) values = Arrays.copyOf(values, size << 1);
+        values[size] = value;
+        codes.put(value, size);     // 先放入数组再公开编码
+        return size++;
+    }
+
+}
@@ -24,6 +24,18 @@ public @interface FieldEntry {
      */
     boolean unique() default false;
 
+    /*
+     *  在缓存集合上为此字段建立Hash索引，加速Manager.get()/filterEqual()
+     *    注意：unique字段总会自动建立索引，无需重复设置；复合索引见ModelEntry.indexes()
+     */
+    boolean index() default false;
+
+    /*
+     *  在缓存集合上为此字段建立有序索引，加速filterGreater/GreaterEqual/Less/LessEqual/Between
+     *    仅对Integer/Double/Timestamp/String类型字段有效
+     */
+    boolean sorted() default false;
+
     /*
      *  设置为非空(NOT NULL)
      *    注意：若非空设置为false，且字段无默认值则会生成可空列
@@ -40,6 +52,22 @@ public @interface FieldEntry {
      */
     String comment() default "";
 
+    /*
+     *  以紧凑编码存储，仅对UUID/Timestamp类型字段有效
+     *    1.UUID存为BINARY(16)，Timestamp存为BIGINT纪元毫秒；读写不经字符串解析/格式化
+     *    2.已有的表由sqlize()在启动时自动换算为新编码；改回false不会换算回去
+     *    注意：不可与initSetCurrent/updateSetCurrent同用，数据库填入的仍是TIMESTAMP
+     */
+    boolean compact() default false;
+
+    /*
+     *  字典编码，仅对String类型字段有效，适用于取值只有少数几种的列(如阶位、区服、阵营、语言)
+     *    1.载入与保存时相同的值在缓存中共用一个String实例
+     *    2.filterEqual/filterNotEqual在缓存上比较int编码而非字符串(见Dictionary、Columns)；与索引相同，只反映已save()的值
+     *    注意：字典只增不减，取值无限的字段(如名字)不要设置
+     */
+    boolean dictionary() default false;
+
 
     //  以下参数对于自定义model不一定安全，不建议使用
     /*
@@ -0,0 +1,191 @@
+package tk.kahsolt.akasha.model;
+
+import org.apache.log4j.Logger;
+import tk.kahsolt.akasha.db.SQLEngine;
+import tk.kahsolt.akasha.db.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+public final class Flusher {
+
+    private static final Logger logger = Logger.getLogger(Flusher.class);
+
+    /*
+     *  写回(write-behind)模式的后台刷写线程，由Akasha.enableWriteBehind()启用
+     *    1.save()/remove()在调用线程上立即更新缓存与索引，只把模型登记到待写表，不访问数据库
+     *    2.同一模型的多次save()合并为一次写入，写入刷出时的最新值；remove()覆盖之前的save()
+     *    3.每轮刷出在一个事务内完成：先DELETE，再UPDATE，最后批量INSERT
+     *    4.整轮回滚时(模型的id与快照已由回滚钩子复原)逐个模型各用一个事务重试，仍失败的放回待写表，
+     *      下一轮再试，累计失败MAX_ATTEMPTS轮后丢弃并记错误日志
+     *    5.待写模型数达到capacity的一半时提前刷出；达到capacity时save()/remove()阻塞至后台追上(背压)
+     *    6.flush()阻塞至调用前登记的改动全部落库或被丢弃，返回期间是否没有丢弃；stop()排空待写表后退出
+     */
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final SQLEngine dbEngine;
+    private final long interval;    // 刷出周期(ms)
+    private final int capacity;     // 待写模型数上限
+    private final Thread thread;
+
+    private IdentityHashMap<Model, Boolean> pending = new IdentityHashMap<>();  // 值为true表示删除
+    private long enqueued;          // 登记序号
+    private long flushed;           // 已落库(或被丢弃)的登记序号
+    private long discarded;         // 被丢弃的改动数
+    private final IdentityHashMap<Model, Integer> attempts = new IdentityHashMap<>();   // 放回待写表的模型已失败的轮数
+    private boolean urgent;
+    private boolean running = true;
+
+    public Flusher(SQLEngine dbEngine, long interval, int capacity) {
+        this.dbEngine = dbEngine;
+        this.interval = interval;
+        this.capacity = capacity;
+        thread = new Thread(this::run, "Akasha-Flusher");
+        thread.setDaemon(true);     // 退出前务必调用Akasha.stop()，否则未落库的改动会丢失
+        thread.start();
+    }
+
+    synchronized void enqueue(Model model, boolean delete) {
+        if(!running) {
+            logger.error(String.format("Flusher stopped, change to '%s' discarded.", model));
+            return;
+        }
+        while (pending.size()>=capacity && !pending.containsKey(model) && Thread.currentThread()!=thread) {
+            urgent = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pending.put(model, delete);
+        enqueued++;
+        if(pending.size()>=capacity/2) {
+            urgent = true;
+            notifyAll();
+        }
+    }
+    public boolean flush() {
+        if(Thread.currentThread()==thread) return true;
+        synchronized (this) {
+            long target = enqueued, lost = discarded;
+            urgent = true;
+            notifyAll();
+            while (flushed<target && thread.isAlive()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return flushed>=target && discarded==lost;
+        }
+    }
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            IdentityHashMap<Model, Boolean> batch;
+            long target;
+            synchronized (this) {
+                if(running && !urgent) {
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException ignored) { }
+                }
+                urgent = false;
+                if(pending.isEmpty()) {
+                    flushed = enqueued;
+                    notifyAll();
+                    if(!running) return;
+                    continue;
+                }
+                batch = pending;
+                pending = new IdentityHashMap<>();
+                target = enqueued;
+                notifyAll();    // 唤醒因背压阻塞的调用者
+            }
+            IdentityHashMap<Model, Boolean> failed = write(batch);
+            synchronized (this) {
+                for (Model model : batch.keySet()) if(!failed.containsKey(model)) attempts.remove(model);
+                for (Map.Entry<Model, Boolean> entry : failed.entrySet()) {
+                    Model model = entry.getKey();
+                    if(pending.containsKey(model)) {    // 期间又登记了新的改动，以新的为准
+                        attempts.remove(model);
+                        continue;
+                    }
+                    int attempt = attempts.getOrDefault(model, 0) + 1;
+                    if(attempt>=MAX_ATTEMPTS) {
+                        attempts.remove(model);
+                        discarded++;
+                        logger.error(String.format("Failed flushing '%s' %d times, change discarded.", model, attempt));
+                    } else {
+                        attempts.put(model, attempt);
+                        pending.put(model, entry.getValue());
+                    }
+                }
+                if(attempts.isEmpty()) flushed = target;   // 有待重试的改动时不算落库，重试轮数有限
+                notifyAll();
+            }
+        }
+    }
+    private IdentityHashMap<Model, Boolean> write(IdentityHashMap<Model, Boolean> batch) {    // 返回未能落库的模型
+        ArrayList<Model> deletes = new ArrayList<>();
+        ArrayList<Model> updates = new ArrayList<>();
+        ArrayList<Model> inserts = new ArrayList<>();
+        for (Map.Entry<Model, Boolean> entry : batch.entrySet()) {
+            Model model = entry.getKey();
+            if(entry.getValue()) { if(model.exists()) deletes.add(model); }    // 尚未插入即被删除的，直接丢弃
+            else if(model.exists()) updates.add(model);
+            else inserts.add(model);
+        }
+        long time = System.currentTimeMillis();
+        boolean committed = false;
+        try (Transaction tx = dbEngine.transaction()) {
+            for (Model model : deletes) model.delete();
+            for (Model model : updates) model.update();
+            Model.insertAll(inserts);
+            committed = tx.commit();
+        } catch (Exception e) {     // 含开启事务失败，未提交即已回滚
+            e.printStackTrace();
+        }
+        IdentityHashMap<Model, Boolean> failed = new IdentityHashMap<>();
+        if(!committed) {
+            logger.warn(String.format("Flush round of %d models rolled back, retrying one by one.", batch.size()));
+            for (Model model : deletes) if(!write(model, true)) failed.put(model, true);
+            for (Model model : updates) if(!write(model, false)) failed.put(model, false);
+            for (Model model : inserts) if(!write(model, false)) failed.put(model, false);
+        }
+        logger.debug(String.format("Flushed %d deletes, %d updates, %d inserts in %d ms, %d failed.",
+                deletes.size(), updates.size(), inserts.size(), System.currentTimeMillis() - time, failed.size()));
+        return failed;
+    }
+    private boolean write(Model model, boolean delete) {   // 单个模型一个事务
+        try (Transaction tx = dbEngine.transaction()) {
+            if(delete) model.delete();
+            else if(model.exists()) model.update();
+            else Model.insertAll(Collections.singletonList(model));
+            return tx.commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+package tk.kahsolt.akasha.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+class HashIndex extends Index {
+
+    /*
+     *  Hash索引，服务于Manager.get()/filterEqual()，支持复合键
+     */
+
+    HashIndex(Accessor[] fields) { super(fields, new ConcurrentHashMap<>()); }
+
+}
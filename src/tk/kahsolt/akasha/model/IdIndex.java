@@ -0,0 +1,36 @@
+package tk.kahsolt.akasha.model;
+
+import java.util.Collection;
+import java.util.Collections;
+
+final class IdIndex extends HashIndex {
+
+    /*
+     *  id上的Hash索引，直接查Store的id表，自身不维护桶；不在Manager.allIndexes中
+     */
+
+    private final Store collection;
+
+    IdIndex(Accessor id, Store collection) {
+        super(new Accessor[] { id });
+        this.collection = collection;
+    }
+
+    @Override
+    void add(Model model) { }
+    @Override
+    void remove(Model model) { }
+    @Override
+    void update(Model model) { }
+    @Override
+    void rebuild(Collection<? extends Model> models) { }
+
+    @Override
+    Collection<Model> lookup(Object... values) {
+        Object key = keyOf(values);
+        if(key==NO_MATCH) return Collections.emptySet();
+        Model model = collection.get((Integer) key);
+        return model!=null ? Collections.singleton(model) : Collections.emptySet();
+    }
+
+}
@@ -0,0 +1,159 @@
+package tk.kahsolt.akasha.model;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.*;
+
+abstract class Index {
+
+    /*
+     *  缓存集合上的索引基类，键为单个字段值或多个字段值构成的List(复合键)
+     *    1.索引只反映已save()的状态，直接修改字段而未保存不会改变索引
+     *    2.键中含null的行不入索引，即null不等于任何值
+     *    3.桶内仅一个模型时直接存放该模型，多于一个时为不可变的Model[]，修改时整体替换
+     *    4.维护由Manager加锁串行，查询无锁；各桶内一致，跨桶(区间查找)为弱一致
+     *    5.原始类型字段的键为其包装类型；byte[]包为ByteBuffer，按内容比较；Timestamp存其副本
+     */
+
+    static final Object NO_MATCH = new Object();    // 查询值无法转换为字段类型
+
+    protected final Accessor[] fields;
+    protected final Map<Object, Object> buckets;
+    private final IdentityHashMap<Model, Object> keys = new IdentityHashMap<>(); // 模型当前入索引的键
+
+    protected Index(Accessor[] fields, Map<Object, Object> buckets) {
+        this.fields = fields;
+        this.buckets = buckets;
+    }
+
+    // 键的计算与转换，Timestamp/byte[]可变，须复制
+    private static Object key(Object value) {
+        if(value instanceof byte[]) return ByteBuffer.wrap(((byte[]) value).clone());
+        if(value instanceof Timestamp) return ((Timestamp) value).clone();    // clone保留纳秒
+        return value;
+    }
+    private Object keyOf(Model model) {
+        if(fields.length==1) return key(fields[0].get(model));
+        Object[] vals = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            vals[i] = key(fields[i].get(model));
+            if(vals[i]==null) return null;
+        }
+        return Arrays.asList(vals);
+    }
+    Object keyOf(Object... values) {
+        if(values.length!=fields.length) return NO_MATCH;
+        if(fields.length==1) return normalize(fields[0].type, values[0]);
+        Object[] vals = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            vals[i] = normalize(fields[i].type, values[i]);
+            if(vals[i]==null || vals[i]==NO_MATCH) return NO_MATCH;
+        }
+        return Arrays.asList(vals);
+    }
+    static Object normalize(Class<?> type, Object value) {  // 将查询值转为与字段相同的类型，使equals()/hashCode()可比
+        if(value==null) return NO_MATCH;
+        if(type.isPrimitive()) type = boxed(type);
+        if(type==byte[].class) return value instanceof byte[] ? ByteBuffer.wrap((byte[]) value) : NO_MATCH;
+        if(type.isInstance(value)) return value;
+        try {
+            if(type==Integer.class) {
+                if(value instanceof Number) {
+                    Number num = (Number) value;
+                    return num.intValue()==num.doubleValue() ? (Object) num.intValue() : NO_MATCH;
+                }
+                return Integer.parseInt(value.toString());
+            }
+            if(type==Double.class) {
+                if(value instanceof Number) return ((Number) value).doubleValue();
+                return Double.parseDouble(value.toString());
+            }
+            if(type==Long.class || type==Boolean.class) {
+                Object r = Predicates.toIntegral(value);
+                if(!(r instanceof Long)) return NO_MATCH;
+                if(type==Long.class) return r;
+                return (Long) r==1 ? Boolean.TRUE : (Long) r==0 ? Boolean.FALSE : NO_MATCH;
+            }
+            if(type==Float.class) {
+                if(value instanceof Number) return ((Number) value).floatValue();
+                return Float.parseFloat(value.toString());
+            }
+            if(type==String.class) return value.toString();
+            if(type==UUID.class) return UUID.fromString(value.toString());
+            if(type==Timestamp.class) {
+                if(value instanceof Date) return new Timestamp(((Date) value).getTime());
+                return Timestamp.valueOf(value.toString());
+            }
+        } catch (IllegalArgumentException ignored) { }   // 含NumberFormatException
+        return NO_MATCH;
+    }
+
+    static Class<?> boxed(Class<?> type) {
+        if(type==int.class) return Integer.class;
+        if(type==long.class) return Long.class;
+        if(type==double.class) return Double.class;
+        if(type==float.class) return Float.class;
+        if(type==boolean.class) return Boolean.class;
+        return type;
+    }
+
+    // 维护
+    void add(Model model) {
+        Object key = keyOf(model);
+        if(key==null) return;
+        keys.put(model, key);
+        Object bucket = buckets.get(key);
+        if(bucket==null) buckets.put(key, model);
+        else if(bucket instanceof Model) buckets.put(key, new Model[] { (Model) bucket, model });
+        else {
+            Model[] models = (Model[]) bucket;
+            Model[] grown = Arrays.copyOf(models, models.length + 1);
+            grown[models.length] = model;
+            buckets.put(key, grown);
+        }
+    }
+    void remove(Model model) {
+        Object key = keys.remove(model);
+        if(key==null) return;
+        Object bucket = buckets.get(key);
+        if(bucket==model) buckets.remove(key);
+        else if(bucket instanceof Model[]) {
+            Model[] models = (Model[]) bucket;
+            if(models.length==2) buckets.put(key, models[0]==model ? models[1] : models[0]);
+            else {
+                Model[] shrunk = new Model[models.length - 1];
+                int n = 0;
+                for (Model m : models) if(m!=model && n<shrunk.length) shrunk[n++] = m;
+                buckets.put(key, shrunk);
+            }
+        }
+    }
+    void update(Model model) {
+        Object key = keyOf(model);
+        if(Objects.equals(key, keys.get(model))) return;
+        remove(model);
+        add(model);
+    }
+    void rebuild(Collection<? extends Model> models) {
+        buckets.clear();
+        keys.clear();
+        for (Model model : models) add(model);
+    }
+
+    // 查询
+    Collection<Model> lookup(Object... values) {
+        Object key = keyOf(values);
+        if(key==NO_MATCH) return Collections.emptySet();
+        Object bucket = buckets.get(key);
+        if(bucket==null) return Collections.emptySet();
+        if(bucket instanceof Model) return Collections.singleton((Model) bucket);
+        return Collections.unmodifiableList(Arrays.asList((Model[]) bucket));
+    }
+    protected static void collect(Collection<Object> buckets, HashSet<Model> results) {
+        for (Object bucket : buckets) {
+            if(bucket instanceof Model) results.add((Model) bucket);
+            else Collections.addAll(results, (Model[]) bucket);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package tk.kahsolt.akasha.model;
+
+import java.lang.ref.SoftReference;
+
+public final class LazyText {
+
+    /*
+     *  延迟载入的TEXT列，字段声明为 @FieldEntry public LazyText xxx; 即可
+     *    1.模型化时不读取该列，首次get()时单独查询；Manager.preload()可为一批模型一次取回
+     *    2.已落库的值只以SoftReference持有，内存紧张时可被回收，之后的get()会重新查询
+     *    3.set()之后到保存之前以强引用持有；未载入的列不会被update()写回
+     *  equals()只比较是否为同一次set()的值，供脏检查使用
+     */
+
+    private static final String NULL = new String();   // 库中为NULL的已载入值
+
+    private volatile Model owner;                   // 所属模型与列名，用于重新查询
+    private volatile String column;
+    private volatile Object stamp = new Object();   // 每次set()更新
+    private volatile boolean dirty;                 // value为未落库的值
+    private volatile String value;
+    private volatile SoftReference<String> cache;   // 已落库的值
+
+    public LazyText() { this((String) null); }
+    public LazyText(String value) { set(value); }
+    LazyText(Model owner, String column) {          // 未载入
+        this.owner = owner;
+        this.column = column;
+    }
+    private LazyText(LazyText text) {
+        owner = text.owner;
+        column = text.column;
+        stamp = text.stamp;
+        dirty = text.dirty;
+        value = text.value;
+        cache = text.cache;
+    }
+
+    public String get() {
+        String value = this.value;      // 先读value再读dirty，与settle()的写入顺序相反
+        if(dirty) return value;
+        String text = cached();
+        if(text==null) {
+            Model owner = this.owner;
+            if(owner==null || owner.id()==null || !Model.loadText(owner, column, this)) return null;
+            text = cached();
+        }
+        return text==NULL ? null : text;
+    }
+    public void set(String value) {
+        this.value = value;
+        stamp = new Object();
+        dirty = true;
+        cache = null;
+    }
+    public boolean isLoaded() { return dirty || cached()!=null; }
+    private String cached() {
+        SoftReference<String> cache = this.cache;
+        return cache!=null ? cache.get() : null;
+    }
+
+    // 供Model维护
+    void loaded(String text) { if(!dirty) cache = new SoftReference<>(text!=null ? text : NULL); }
+    void invalidate() { if(!dirty) cache = null; }     // 库中的值已变
+    LazyText frozen() { return new LazyText(this); }     // 取字段值时的副本，供脏检查与异步绑定
+    void settle(Model owner, String column, LazyText frozen) {     // 落库之后：转为软引用，副本只留stamp
+        if(this.owner==null) {
+            this.owner = owner;
+            this.column = column;
+        }
+        if(dirty && stamp==frozen.stamp) {
+            cache = new SoftReference<>(value!=null ? value : NULL);
+            dirty = false;
+            value = null;
+        }
+        frozen.dirty = false;
+        frozen.value = null;
+        frozen.cache = null;
+    }
+
+    @Override
+    public boolean equals(Object o) { return o instanceof LazyText && ((LazyText) o).stamp==stamp; }
+    @Override
+    public int hashCode() { return System.identityHashCode(stamp); }
+    @Override
+    public String toString() { return isLoaded() ? String.valueOf(get()) : "<lazy>"; }
+
+}
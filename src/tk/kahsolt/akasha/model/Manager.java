@@ -1,170 +1,321 @@
 package tk.kahsolt.akasha.model;
 
+import org.apache.log4j.Logger;
+import tk.kahsolt.akasha.db.Transaction;
+
 import java.lang.reflect.Field;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.util.Date;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public class Manager {
 
+    private static final Logger logger = Logger.getLogger(Manager.class);
+
     // Kernels & Caches
     private Class<? extends Model> clazz;
-    private HashSet<? extends Model> collection;
+    private Store collection;
+    private HashMap<String, HashIndex> indexes = new HashMap<>();   // 键为逗号分隔的字段名
+    private HashMap<String, SortedIndex> sortedIndexes = new HashMap<>();
+    private ArrayList<Index> allIndexes = new ArrayList<>();
+    private HashMap<String, Accessor> fields = new HashMap<>();      // 字段名到存取器，含默认字段
+    private Columns columns;        // 列式副本，未启用时为null
+    private static final long COLUMNAR_WARNING = 64L << 20;        // 列式副本的额外堆占用超过此值时告警
+
+    // Cache policy
+    final CacheMode mode;
+    private final int capacity;
+    private final long ttl;
+    private final LinkedHashMap<Model, Long> recent = new LinkedHashMap<>(16, 0.75f, true);   // BOUNDED下各模型的最近访问时间，由本对象锁保护
+    private final HashSet<String> loadKeys = new HashSet<>();       // 未命中时可从库中载入的字段：id及unique字段
 
-    public Manager(Class<? extends Model> clazz, HashSet<? extends Model> collection) {
+    // Refresh state：已见过的最大id与update_time，以及已确认落库的id，由Model维护
+    final ReentrantReadWriteLock merging = new ReentrantReadWriteLock();  // 写锁为refresh()的合并，读锁为插入回填id
+    private final Object refreshing = new Object();
+    int seenId;
+    Timestamp seenUpdate;
+    volatile Set<Integer> seenIds = ConcurrentHashMap.newKeySet();
+
+    Manager(Class<? extends Model> clazz, Store collection) {
         this.clazz = clazz;
         this.collection = collection;
+        ModelEntry me = clazz.getDeclaredAnnotation(ModelEntry.class);
+        mode = me!=null ? me.cache() : CacheMode.ALL;
+        capacity = me!=null ? Math.max(1, me.capacity()) : 0;
+        ttl = me!=null ? me.ttl() : 0;
+        for (Accessor field : Model.accessors(clazz)) fields.put(field.name, field);
+        for (Accessor field : Model.baseAccessors()) fields.put(field.name, field);
+        buildIndexes();
+        columns = new Columns(fields.values(), me!=null && me.columnar());  // 字典字段总有编码列
+        if(!columns.isEmpty()) {
+            collection.attach(columns);
+            long bytes = (long) columns.bytesPerRow() * collection.size();
+            if(me!=null && me.columnar() && bytes>=COLUMNAR_WARNING)
+                logger.warn(String.format("Columnar copy of model '%s' takes ~%d MB on top of the cached models, consider disabling it.",
+                        clazz.getSimpleName(), bytes >> 20));
+        } else columns = null;
+    }
+
+    // Indexes on the cached collection
+    private void buildIndexes() {
+        ArrayList<String[]> keys = new ArrayList<>();
+        for (Field field : clazz.getDeclaredFields()) {
+            FieldEntry fe = field.getDeclaredAnnotation(FieldEntry.class);
+            if(fe==null) continue;
+            if(fe.unique() || fe.index()) keys.add(new String[] { field.getName() });
+            if(fe.unique()) loadKeys.add(field.getName());
+            if(fe.dictionary() && field.getType()!=String.class)
+                logger.warn(String.format("Field '%s' of model '%s' is not a String, dictionary ignored.",
+                        field.getName(), clazz.getSimpleName()));
+            if(fe.sorted()) {
+                if(!TypeMap.isSortable(field.getType())) {
+                    logger.warn(String.format("Field '%s' of model '%s' is not sortable, ignored.",
+                            field.getName(), clazz.getSimpleName()));
+                    continue;
+                }
+                SortedIndex index = new SortedIndex(fields.get(field.getName()));
+                index.rebuild(collection);
+                sortedIndexes.put(field.getName(), index);
+                allIndexes.add(index);
+            }
+        }
+        indexes.put("id", new IdIndex(fields.get("id"), collection));
+        if(mode!=CacheMode.ALL) loadKeys.add("id");
+        ModelEntry me = clazz.getDeclaredAnnotation(ModelEntry.class);
+        if(me!=null) for (String index : me.indexes()) keys.add(index.replace(" ", "").split(","));
+        for (String[] key : keys) {
+            Accessor[] accessors = new Accessor[key.length];
+            for (int i = 0; i < key.length; i++) accessors[i] = fields.get(key[i]);
+            if(Arrays.asList(accessors).contains(null)) {
+                logger.error(String.format("Cannot index on unknown field '%s' of model '%s'.",
+                        String.join(",", key), clazz.getSimpleName()));
+                continue;
+            }
+            HashIndex index = new HashIndex(accessors);
+            index.rebuild(collection);
+            indexes.put(String.join(",", key), index);
+            allIndexes.add(index);
+        }
+    }
+    void seen(Integer id, Timestamp update) {   // 只由模型化与refresh()调用
+        if(id==null) return;
+        seenId = Math.max(seenId, id);
+        if(update!=null && (seenUpdate==null || update.after(seenUpdate))) seenUpdate = update;
+    }
+    synchronized void indexAdd(Model model) {     // 写者串行，读者无锁
+        Model.intern(model);
+        for (Index index : allIndexes) index.add(model);
+        if(mode==CacheMode.BOUNDED) recent.put(model, System.currentTimeMillis());
+    }
+    synchronized void indexUpdate(Model model) {
+        Model.intern(model);
+        for (Index index : allIndexes) index.update(model);
+        if(columns!=null) collection.update(model);
+        if(mode==CacheMode.BOUNDED) recent.put(model, System.currentTimeMillis());
+    }
+    synchronized void indexRemove(Model model) {
+        for (Index index : allIndexes) index.remove(model);
+        recent.remove(model);
+    }
+
+    // On-demand loading & eviction
+    private Model touch(Model model) {
+        if(mode==CacheMode.BOUNDED) synchronized (this) {
+            if(collection.contains(model)) recent.put(model, System.currentTimeMillis());
+        }
+        return model;
+    }
+    private Model load(String field, Object value) {
+        Object key = Index.normalize(fields.get(field).type, value);
+        if(key==Index.NO_MATCH) return null;
+        Object param = key instanceof ByteBuffer ? ((ByteBuffer) key).array() : key;
+        if(TypeMap.isCompact(fields.get(field).field))
+            param = key instanceof UUID ? ModelMapper.encodeUUID((UUID) key) : ((Timestamp) key).getTime();
+        else if(key instanceof UUID) param = key.toString();
+        Model model = Model.load(clazz, field, param);
+        if(model==null) return null;
+        synchronized (this) {   // 并发未命中同一键时以先入缓存者为准
+            Collection<Model> res = indexes.get(field).lookup(key);
+            if(!res.isEmpty()) return touch(res.iterator().next());
+            if(collection.add(model)) indexAdd(model);
+        }
+        seenIds.add(model.id());
+        trim();
+        return model;
+    }
+    void trim() {   // BOUNDED下淘汰超出capacity或ttl内未访问的模型，数据库访问在锁外进行
+        if(mode!=CacheMode.BOUNDED) return;
+        ArrayList<Model> victims = new ArrayList<>();
+        synchronized (this) {
+            long expire = ttl>0 ? System.currentTimeMillis() - ttl : Long.MIN_VALUE;
+            int excess = recent.size() - capacity;
+            Iterator<Map.Entry<Model, Long>> it = recent.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Model, Long> entry = it.next();
+                if(excess<=0 && entry.getValue()>=expire) break;
+                victims.add(entry.getKey());
+                it.remove();
+                excess--;
+            }
+        }
+        for (Model model : victims) if(!Model.evict(model)) touch(model);   // 未能淘汰的留到下一轮
     }
 
     // Operations on the cached collection
-    private enum CompareOperator {
+    enum CompareOperator {
         NULL, NOT_NULL,
         EQUAL, NOT_EQUAL, LESS, LESS_EQUAL, GREATER, GREATER_EQUAL,
         BETWEEN, LIKE
     }
+    private static class Condition {
+        private Predicate<Model> predicate;
+        private Index index;            // 可服务此条件的索引，没有则为null
+        private Object[] values;        // 索引查找的参数：Hash索引为键值，有序索引为{下界, 下界闭, 上界, 上界闭}
+        private Columns.Scan scan;      // 可服务此条件的列扫描，没有则为null
+        private Condition(Predicate<Model> predicate) { this.predicate = predicate; }
+    }
     public class Filter {
-        private HashSet<Model> results;  // getResults()之前的查询集合缓冲区
-        private Filter() { this.results = new HashSet<>(collection); }
-
-        private boolean compare(Object lvalue, Object rvalue, CompareOperator operator) {
-            Class<?> type = lvalue.getClass();
-            if(TypeMap.isNumeric(type)) {
-                double rval;
-                if(rvalue instanceof Number || rvalue instanceof String) {
-                    try {
-                        rval = Double.parseDouble(rvalue.toString());
-                    } catch (NumberFormatException e) {
-                        return false;
-                    }
-                } else return false;
-                double lval = Double.parseDouble(rvalue.toString());
-                switch (operator) {
-                    case EQUAL:         return lval == rval;
-                    case NOT_EQUAL:     return lval != rval;
-                    case GREATER:       return lval > rval;
-                    case GREATER_EQUAL: return lval >= rval;
-                    case LESS:          return lval < rval;
-                    case LESS_EQUAL:    return lval <= rval;
-                }
-            } else if(TypeMap.isTemporal(type)) {
-                Date rval;
-                if(rvalue instanceof Date) {
-                    rval = ((Date) rvalue);
-                } else if (rvalue instanceof String) {
-                    try {
-                        rval = DateFormat.getInstance().parse((String) rvalue);
-                    } catch (ParseException e) {
-                        return false;
-                    }
-                } else return false;
-                Date lval = ((Date) lvalue);
-                switch (operator) {
-                    case EQUAL:         return lval.equals(rval);
-                    case NOT_EQUAL:     return !lval.equals(rval);
-                    case GREATER:       return lval.after(rval);
-                    case GREATER_EQUAL: return lval.after(rval) || lval.equals(rval);
-                    case LESS:          return lval.before(rval);
-                    case LESS_EQUAL:    return lval.before(rval) || lval.equals(rval);
-                }
-            } else {    // Textual
-                String rval = rvalue.toString();
-                String lval = lvalue.toString();
-                switch (operator) {
-                    case EQUAL:         return lval.equals(rval);
-                    case NOT_EQUAL:     return !lval.equals(rval);
-                    case GREATER:       return lval.compareTo(rval) > 0;
-                    case GREATER_EQUAL: return lval.compareTo(rval) >= 0;
-                    case LESS:          return lval.compareTo(rval) < 0;
-                    case LESS_EQUAL:    return lval.compareTo(rval) <= 0;
-                }
-            }
-            return false;
+
+        /*
+         *  惰性筛选管线：filterXxx()只记录条件，终结操作时一趟扫描完成全部筛选
+         *    1.若某条件可由索引服务(Hash索引优先)，则以索引结果为扫描源；否则有列式副本时以列扫描的命中为源，再否则扫描全集
+         *    2.终结操作：getResults()/stream()/forEach()/first()/exists()/count()
+         *    3.Filter可反复执行终结操作，每次都基于缓存的当前快照重新计算，不加锁
+         *    4.索引与列式副本(含字典编码)只反映已save()的状态，仅用于挑选候选；全部条件再在字段的当前值上复核
+         *      结果总与当前值一致，但改了被索引/列存的字段而尚未save()的模型可能查不到，查询前应先save()
+         */
+
+        private ArrayList<Condition> conditions = new ArrayList<>();
+        private Filter() { }
+
+        private Predicate<Model> predicate(String field, CompareOperator operator, Object... values) {
+            return Predicates.compile(fields.get(field), operator, values);   // 每个条件只编译一次
         }
-        private Filter filterByOperator(String field, CompareOperator operator) {
-            HashSet<Model> pass = new HashSet<>();
-            for (Model model : results) {
-                try {
-                    Field f = clazz.getDeclaredField(field);
-                    f.setAccessible(true);
-                    Object val = f.get(model);
-                    switch (operator) {
-                        case NULL:
-                            if(val!=null) pass.add(model); break;
-                        case NOT_NULL:
-                            if(val==null) pass.add(model); break;
-                    }
-                } catch (NoSuchFieldException | IllegalAccessException e) {
-                    pass.add(model);
-                }
+        private Condition condition(String field, CompareOperator operator, Object... values) {
+            Condition condition = new Condition(predicate(field, operator, values));
+            if(columns!=null) condition.scan = columns.compile(field, operator, condition.predicate, values);
+            return condition;
+        }
+        private Filter filterByOperator(String field, CompareOperator operator, Object... values) {
+            conditions.add(condition(field, operator, values));
+            return this;
+        }
+        private Filter filterByRange(String field, CompareOperator operator, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+            Condition condition = operator==CompareOperator.BETWEEN ?
+                    condition(field, operator, lower, upper) :
+                    condition(field, operator, lower!=null ? lower : upper);
+            boolean unbound = operator==CompareOperator.BETWEEN ? lower==null || upper==null : lower==null && upper==null;
+            if(!unbound && sortedIndexes.containsKey(field)) {
+                condition.index = sortedIndexes.get(field);
+                condition.values = new Object[] { lower, lowerInclusive, upper, upperInclusive };
             }
-            results.removeAll(pass);
+            conditions.add(condition);
             return this;
         }
-        private Filter filterByOperator(String field, CompareOperator operator, Object value) {
-            HashSet<Model> pass = new HashSet<>();
-            for (Model model : results) {
-                try {
-                    Field f = clazz.getDeclaredField(field);
-                    f.setAccessible(true);
-                    Object val = f.get(model);
-                    switch (operator) {
-                        case EQUAL:
-                        case NOT_EQUAL:
-                        case GREATER:
-                        case GREATER_EQUAL:
-                        case LESS:
-                        case LESS_EQUAL:
-                            if(!compare(val, value, operator))
-                                pass.add(model);
-                            break;
-                        case LIKE:  // only valid for String/UUID
-                            if(!(TypeMap.isTextual(f.getType()) && (val.toString().contains(value.toString()))))
-                                pass.add(model);
-                            break;
-                    }
-                } catch (NoSuchFieldException | IllegalAccessException e) {
-                    pass.add(model);
-                }
+        public Filter filterNull(String field) { return filterByOperator(field, CompareOperator.NULL); }
+        public Filter filterNotNull(String field) { return filterByOperator(field, CompareOperator.NOT_NULL); }
+        public Filter filterEqual(String field, Object value) {
+            Condition condition = condition(field, CompareOperator.EQUAL, value);
+            if(indexes.containsKey(field)) {
+                condition.index = indexes.get(field);
+                condition.values = new Object[] { value };
             }
-            results.removeAll(pass);
+            conditions.add(condition);
             return this;
         }
-        private Filter filterByOperator(String field, CompareOperator operator, Object minValue, Object maxValue) {
-            HashSet<Model> pass = new HashSet<>();
-            for (Model model : results) {
-                try {
-                    Field f = clazz.getDeclaredField(field);
-                    f.setAccessible(true);
-                    Object val = f.get(model);
-                    switch (operator) {
-                        case BETWEEN:
-                            if(compare(val, minValue, CompareOperator.LESS)) { pass.add(model); break; }
-                            if(compare(val, maxValue, CompareOperator.GREATER)) { pass.add(model); break; }
-                    }
-                } catch (NoSuchFieldException | IllegalAccessException e) {
-                    pass.add(model);
-                }
+        public Filter filterEqual(String[] fields, Object... values) {
+            Predicate<Model>[] tests = newPredicates(fields.length);
+            for (int i = 0; i < fields.length; i++)
+                tests[i] = predicate(fields[i], CompareOperator.EQUAL, i<values.length ? values[i] : null);
+            Condition condition = new Condition(model -> matches(tests, model));
+            String key = String.join(",", fields);
+            if(indexes.containsKey(key)) {
+                condition.index = indexes.get(key);
+                condition.values = values;
             }
-            results.removeAll(pass);
+            conditions.add(condition);
             return this;
         }
-        public Filter filterNull(String field) { return filterByOperator(field, CompareOperator.NULL); }
-        public Filter filterNotNull(String field) { return filterByOperator(field, CompareOperator.NOT_NULL); }
-        public Filter filterEqual(String field, Object value) { return filterByOperator(field, CompareOperator.EQUAL, value); }
         public Filter filterNotEqual(String field, Object value) { return filterByOperator(field, CompareOperator.NOT_EQUAL, value); }
-        public Filter filterGreater(String field, Object value) { return filterByOperator(field, CompareOperator.GREATER, value); }
-        public Filter filterGreaterEqual(String field, Object value) { return filterByOperator(field, CompareOperator.GREATER_EQUAL, value); }
-        public Filter filterLess(String field, Object value) { return filterByOperator(field, CompareOperator.LESS, value); }
-        public Filter filterLessEqual(String field, Object value) { return filterByOperator(field, CompareOperator.LESS_EQUAL, value); }
+        public Filter filterGreater(String field, Object value) { return filterByRange(field, CompareOperator.GREATER, value, false, null, false); }
+        public Filter filterGreaterEqual(String field, Object value) { return filterByRange(field, CompareOperator.GREATER_EQUAL, value, true, null, false); }
+        public Filter filterLess(String field, Object value) { return filterByRange(field, CompareOperator.LESS, null, false, value, false); }
+        public Filter filterLessEqual(String field, Object value) { return filterByRange(field, CompareOperator.LESS_EQUAL, null, false, value, true); }
         public Filter filterLike(String field, Object value) { return filterByOperator(field, CompareOperator.LIKE, value);}
-        public Filter filterBetween(String field, Object minValue, Object maxValue) { return filterByOperator(field, CompareOperator.BETWEEN, minValue, maxValue);}
+        public Filter filterBetween(String field, Object minValue, Object maxValue) { return filterByRange(field, CompareOperator.BETWEEN, minValue, true, maxValue, true);}
+
+        // 执行计划：选出扫描源，其余条件融合为一个谓词数组
+        private Collection<? extends Model> source;
+        private Predicate<Model>[] tests;
+        private void plan() {
+            Condition driver = null;
+            for (Condition condition : conditions) {
+                if(condition.index instanceof HashIndex) { driver = condition; break; }
+                if(condition.index!=null && driver==null) driver = condition;
+            }
+            ArrayList<Columns.Scan> scans = new ArrayList<>();
+            ArrayList<Predicate<Model>> all = new ArrayList<>();
+            for (Condition condition : conditions) {
+                if(driver==null && condition.scan!=null) scans.add(condition.scan);
+                all.add(condition.predicate);   // 索引/列扫描只给出候选，全部条件都在当前值上复核
+            }
+            if(driver!=null) {
+                if(driver.index instanceof HashIndex) source = driver.index.lookup(driver.values);
+                else {
+                    Object[] v = driver.values;
+                    source = ((SortedIndex) driver.index).range(v[0], (Boolean) v[1], v[2], (Boolean) v[3]);
+                }
+            } else if(!scans.isEmpty()) source = columns.select(collection.snapshot(), scans);
+            else source = collection.snapshot();
+            tests = all.toArray(newPredicates(0));
+        }
 
-        public HashSet<Model> getResults() { return results; }
+        // 终结操作
+        public HashSet<Model> getResults() {
+            plan();
+            HashSet<Model> results = new HashSet<>();
+            for (Model model : source) if(matches(tests, model)) results.add(model);
+            return results;
+        }
+        public Stream<Model> stream() {
+            plan();
+            Predicate<Model>[] tests = this.tests;
+            return source.stream().map(model -> (Model) model).filter(model -> matches(tests, model));
+        }
+        public void forEach(Consumer<? super Model> action) {
+            plan();
+            for (Model model : source) if(matches(tests, model)) action.accept(model);
+        }
+        public Model first() {
+            plan();
+            for (Model model : source) if(matches(tests, model)) return model;
+            return null;
+        }
+        public boolean exists() { return first()!=null; }
+        public int count() {
+            plan();
+            int count = 0;
+            for (Model model : source) if(matches(tests, model)) count++;
+            return count;
+        }
     }
+    @SuppressWarnings("unchecked")
+    private static Predicate<Model>[] newPredicates(int size) { return (Predicate<Model>[]) new Predicate<?>[size]; }
+    private static boolean matches(Predicate<Model>[] tests, Model model) {
+        for (Predicate<Model> test : tests) if(!test.test(model)) return false;
+        return true;
+    }
+    public Filter filter() { return new Filter(); }
     public Filter filterNull(String field) { return new Filter().filterNull(field); }
     public Filter filterNotNull(String field) { return new Filter().filterNotNull(field); }
     public Filter filterEqual(String field, Object value) { return new Filter().filterEqual(field, value); }
+    public Filter filterEqual(String[] fields, Object... values) { return new Filter().filterEqual(fields, values); }
     public Filter filterNotEqual(String field, Object value) { return new Filter().filterNotEqual(field, value); }
     public Filter filterGreater(String field, Object value) { return new Filter().filterGreater(field , value); }
     public Filter filterGreaterEqual(String field, Object value) { return new Filter().filterGreaterEqual(field, value); }
@@ -172,22 +323,90 @@ public class Manager {
     public Filter filterLessEqual(String field, Object value) { return new Filter().filterLessEqual(field, value); }
     public Filter filterBetween(String field, Object minValue, Object maxValue) { return new Filter().filterBetween(field, minValue, maxValue); }
     public Filter filterLike(String field, Object value) { return new Filter().filterLike(field, value);}
-    public HashSet<Model> all() { return new HashSet<>(collection); }
-    public Model get(String field, Object value) {  // shortcut
-        HashSet<Model> res = filterEqual(field, value).getResults();
-        return res.size()==1 ? res.iterator().next() : null;
+    public HashSet<Model> all() { return new HashSet<>(collection.snapshot()); }
+    public Set<Model> view() { return collection.snapshot(); }     // 当前的不可变快照，不复制，不受之后增删的影响
+    public int preload(String field, Collection<? extends Model> models) {   // 为一批模型一次取回延迟列，返回载入的个数
+        Accessor accessor = fields.get(field);
+        int index = accessor!=null ? Arrays.asList(Model.accessors(clazz)).indexOf(accessor) : -1;
+        if(index<0 || accessor.type!=LazyText.class) {
+            logger.error(String.format("Field '%s' of model '%s' is not a LazyText.", field, clazz.getSimpleName()));
+            return 0;
+        }
+        return Model.loadTexts(clazz, index, models);
+    }
+    public Model get(String field, Object value) {  // shortcut；LAZY/BOUNDED下按id或unique字段未命中时从库中载入
+        HashIndex index = indexes.get(field);
+        Collection<Model> res = index!=null ? index.lookup(value) : filterEqual(field, value).getResults();
+        if(res.isEmpty() && mode!=CacheMode.ALL && loadKeys.contains(field)) return load(field, value);
+        return res.size()==1 ? touch(res.iterator().next()) : null;
+    }
+    public Model getById(int id) {    // 同get("id", id)，不装箱
+        Model model = collection.get(id);
+        if(model!=null) return touch(model);
+        return mode!=CacheMode.ALL ? load("id", id) : null;
+    }
+    public ArrayList<Model> getAllById(int... ids) {     // 按参数顺序，略去不存在的
+        ArrayList<Model> models = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Model model = getById(id);
+            if(model!=null) models.add(model);
+        }
+        return models;
+    }
+    public int size() { return collection.size(); }     // 当前缓存的模型数，含尚未落库的
+    public Model get(String[] fields, Object... values) {  // shortcut for composite keys
+        HashIndex index = indexes.get(String.join(",", fields));
+        Collection<Model> res = index!=null ? index.lookup(values) : filterEqual(fields, values).getResults();
+        return res.size()==1 ? touch(res.iterator().next()) : null;
     }
 
     public void saveAll() {  // shortcut
-        Model.beginUpdate();
-        for (Model model : collection) {
-            try {
-                model.save();
-            } catch (Exception e) {
-                e.printStackTrace();
+        if(Model.isWriteBehind()) {
+            for (Model model : collection.snapshot()) model.save();
+            return;
+        }
+        try (Transaction tx = Model.transaction()) {
+            for (Model model : collection.snapshot()) {
+                try {
+                    model.save();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
             }
+            tx.commit();
+        }
+    }
+    public void saveAll(Collection<? extends Model> models) {  // 新模型批量插入，已有模型逐个更新，同在一个事务内
+        if(Model.isWriteBehind()) {     // 写回模式下只登记，由刷写线程合并写库
+            for (Model model : models) model.save();
+            return;
+        }
+        ArrayList<Model> saved = new ArrayList<>();
+        for (Model model : models) if(model.exists()) saved.add(model);
+        try (Transaction tx = Model.transaction()) {
+            Model.insertAll(models);
+            for (Model model : saved) {
+                try {
+                    model.save();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            tx.commit();
+        }
+    }
+    /*
+     *  从库中增量刷新缓存，用于多个进程共用一个库
+     *    1.只取id或update_time超过上次所见的行，已缓存的模型就地合并字段并更新索引，新行入缓存
+     *    2.本进程尚有未保存改动的模型不合并，以本进程随后的save()为准
+     *    3.库中行数与缓存不符时按id核对，删除别处已删的模型；返回合并/新增/删除的模型数
+     */
+    public int refresh() {
+        synchronized (refreshing) {     // 不占用索引维护的锁，save()不被刷新阻塞
+            return Model.refresh(clazz, this);
         }
-        Model.endUpdate();
     }
+    public CompletableFuture<Boolean> saveAllAsync() { return Model.saveAllAsync(all()); }  // 同saveAll()，在一个事务内异步执行
+    public CompletableFuture<Boolean> saveAllAsync(Collection<? extends Model> models) { return Model.saveAllAsync(models); }
 
 }
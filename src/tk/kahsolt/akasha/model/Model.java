@@ -1,14 +1,22 @@
 package tk.kahsolt.akasha.model;
 
 import org.apache.log4j.Logger;
+import tk.kahsolt.akasha.db.Binder;
+import tk.kahsolt.akasha.db.ResultHandler;
 import tk.kahsolt.akasha.db.SQLEngine;
-import tk.kahsolt.akasha.db.MySQLEngine;
+import tk.kahsolt.akasha.db.Transaction;
 import tk.kahsolt.sqlbuilder.sql.Query;
 import tk.kahsolt.sqlbuilder.sql.Table;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
 public abstract class Model {
 
@@ -20,52 +28,66 @@ public abstract class Model {
 
     // Kernels & Caches
     private static SQLEngine dbEngine;                                              // 数据库引擎
-    private static HashMap<Class<? extends Model>, Manager> managers;               // 登记各模型管理器
-    private static HashMap<Class<? extends Model>, HashSet<Model>> collections;     // 登记各模型集合
+    private static Map<Class<? extends Model>, Manager> managers;                   // 登记各模型管理器
+    private static Map<Class<? extends Model>, Store> collections;                  // 登记各模型集合(读无锁)
     private static HashMap<Class<? extends Model>, ArrayList<Field>> fieldsets;     // 缓存各模型自定义字段集(不含默认字段)
-    private static HashMap<String, String> sqlTemplates = new HashMap<>();          // 缓存SQL模板语句
-    private void modelize() {  // execute sql, pack results to cache
+    private static HashMap<Class<? extends Model>, Accessor[]> accessors;           // 缓存各模型字段存取器(与fieldsets同序)
+    private static HashMap<Class<? extends Model>, ModelMapper<?>> mappers;         // 各模型的映射器(生成的或反射的)
+    private static final Accessor[] baseAccessors;                                  // 默认字段id/create_time/update_time的存取器
+    private static Flusher flusher;                                                 // 写回模式的后台刷写线程，为null时直接写库
+    private static ExecutorService executor;                                        // 执行saveAsync()等异步写库的线程池
+    private static CacheFile cacheFile;                                             // 启动时载入的缓存快照，模型化之后置null
+    static {
+        try {
+            baseAccessors = new Accessor[] {
+                    new Accessor(Model.class.getDeclaredField("id")),
+                    new Accessor(Model.class.getDeclaredField("create_time")),
+                    new Accessor(Model.class.getDeclaredField("update_time")),
+            };
+        } catch (NoSuchFieldException | IllegalAccessException e) { throw new ExceptionInInitializerError(e); }
+    }
+    static Accessor[] accessors(Class<? extends Model> clazz) { return accessors.get(clazz); }
+    static Accessor[] baseAccessors() { return baseAccessors.clone(); }
+    @SuppressWarnings("unchecked")
+    private static ModelMapper<Model> mapper(Class<? extends Model> clazz) { return (ModelMapper<Model>) mappers.get(clazz); }
+    private static Map<String, String> sqlTemplates = new ConcurrentHashMap<>();    // 缓存SQL模板语句，模板文本即SQLEngine语句缓存的键
+    private static String sqlTemplate(String name, String format, String clazzName) {
+        return sqlTemplates.computeIfAbsent(name + clazzName, k -> String.format(format, clazzName));
+    }
+    private void modelize() {  // execute sql, pack results to cache；可在多个线程上对不同模型并行调用
         Class<? extends Model> clazz = this.getClass();
         String clazzName = clazz.getSimpleName();
-        HashSet<Model> collection = new HashSet<>();
-        logger.info(String.format("Modelizing from table '%s'.", clazzName));
-        try {
-            String sql = dbEngine.sqlBuilder.select("*").from(clazzName).end();
-            ResultSet rs = dbEngine.query(sql);
-            ArrayList<Field> fields = new ArrayList<>(fieldsets.get(clazz));
-            try {
-                fields.add(Model.class.getDeclaredField("id"));
-                fields.add(Model.class.getDeclaredField("create_time"));
-                fields.add(Model.class.getDeclaredField("update_time"));
-            } catch (NoSuchFieldException e) { /* INTERNAL ERROR */ }
-            while (rs.next()) {
-                Model model = clazz.newInstance();
-                try {
-                    for (Field field: fields) {
-                        String name = field.getName();
-                        Class<?> type = field.getType();
-                        try {
-                            field.set(model, rs.getObject(name, type));
-                        } catch (SQLException | IllegalAccessException e) {  // for those DB as silly as SQLite
-                            if (type==String.class) field.set(model, rs.getString(name));
-                            else if (type==Integer.class) field.set(model, rs.getInt(name));
-                            else if (type==Double.class) field.set(model, rs.getDouble(name));
-                            else if (type==Timestamp.class) field.set(model, rs.getTimestamp(name));
-                            else if (type==UUID.class) {
-                                String obj = rs.getString(name);
-                                field.set(model, obj!=null ? UUID.fromString(obj) : null);
-                            } else logger.error(String.format("Type '%s' not supported, see TypeMap!", type));
-                        }
-                    }
-                } catch (IllegalAccessException e) { e.printStackTrace(); }
-                collection.add(model);
-            }
-            rs.close();
-        } catch (SQLException | IllegalAccessException | InstantiationException e) { e.printStackTrace(); }
+        long time = System.currentTimeMillis();
+        ArrayList<Model> loaded = null;
+        CacheMode mode = cacheMode(clazz);
+        CacheFile.Section section = cacheFile!=null && mode==CacheMode.ALL ? cacheFile.section(clazzName, signature(clazz)) : null;
+        if(section!=null) {
+            logger.info(String.format("Modelizing from snapshot of table '%s'.", clazzName));
+            loaded = restore(clazz, section);
+        }
+        if(mode!=CacheMode.ALL) loaded = new ArrayList<>();   // 按需载入
+        if(loaded==null) {
+            logger.info(String.format("Modelizing from table '%s'.", clazzName));
+            loaded = new ArrayList<>();
+            String sql = sqlTemplate("select_", "SELECT " + selection(clazz) + " FROM %s;", clazzName);
+            dbEngine.stream(sql, rows(clazz, loaded, null));
+        }
+        Store collection = new Store(loaded);
         collections.put(clazz, collection);
+        logger.info(String.format("Modelized %d rows from table '%s' in %d ms.", loaded.size(), clazzName, System.currentTimeMillis() - time));
 
         Manager manager = new Manager(clazz, collection);
         managers.put(clazz, manager);
+        for (Model model : loaded) {
+            manager.seen(model.id, model.update_time);
+            manager.seenIds.add(model.id);
+        }
+        if(mode!=CacheMode.ALL) {   // 高水位取库中当前值，refresh()只需关心此后的改动
+            dbEngine.query(sqlTemplate("marks_", "SELECT MAX(id), MAX(update_time) FROM %s;", clazzName), rs -> {
+                if(rs.next()) manager.seen(rs.getInt(1), rs.getTimestamp(2));
+                return null;
+            });
+        }
         try {
             for(Field field : clazz.getDeclaredFields()) {
                 if(field.getDeclaredAnnotation(ManagerEntry.class)!=null) {
@@ -75,31 +97,327 @@ public abstract class Model {
                 }
             }
         } catch (IllegalAccessException e) { e.printStackTrace(); }
-        onModelized();
+    }
+    private static ResultHandler<Boolean> rows(Class<? extends Model> clazz, ArrayList<Model> loaded, HashMap<Integer, Model> byId) {
+        return rs -> {  // byId非空时，已有的模型就地更新
+            ModelMapper<Model> mapper = mapper(clazz);
+            String[] columns = mapper.columns();
+            HashMap<String, Integer> labels = new HashMap<>();  // 列号只从元数据解析一次
+            ResultSetMetaData rsmd = rs.getMetaData();
+            for (int i = 1; i <= rsmd.getColumnCount(); i++) labels.put(rsmd.getColumnLabel(i).toLowerCase(), i);
+            boolean[] lazy = lazy(clazz);
+            int[] indexes = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                if(lazy[i]) continue;   // 不在结果集中，映射器也不读取
+                Integer index = labels.get(columns[i].toLowerCase());
+                if(index==null) throw new SQLException(String.format("Column '%s' missing in table '%s'.", columns[i], clazz.getSimpleName()));
+                indexes[i] = index;
+            }
+            int idIndex = labels.get("id");
+            int createTimeIndex = labels.get("create_time");
+            int updateTimeIndex = labels.get("update_time");
+            while (rs.next()) {
+                int id = rs.getInt(idIndex);
+                Model model = byId!=null ? byId.get(id) : null;
+                boolean fresh = model==null;
+                if(fresh) {
+                    model = mapper.create();
+                    loaded.add(model);
+                }
+                mapper.read(model, rs, indexes);
+                for (int i = 0; i < lazy.length; i++) {
+                    if(!lazy[i]) continue;
+                    LazyText text = (LazyText) mapper.get(model, i);
+                    if(fresh || text==null) mapper.set(model, i, new LazyText(model, columns[i]));
+                    else text.invalidate();
+                }
+                intern(model);
+                model.id = id;
+                model.create_time = rs.getTimestamp(createTimeIndex);
+                model.update_time = rs.getTimestamp(updateTimeIndex);
+                model.snapshot = model.values(mapper);
+            }
+            return true;
+        };
+    }
+    private static ArrayList<Model> restore(Class<? extends Model> clazz, CacheFile.Section section) {   // 失败时返回null，退回整表模型化
+        String clazzName = clazz.getSimpleName();
+        ModelMapper<Model> mapper = mapper(clazz);
+        String[] columns = mapper.columns();
+        boolean[] lazy = lazy(clazz);
+        int width = columns.length;
+        ArrayList<Model> loaded = new ArrayList<>(section.rows);
+        HashMap<Integer, Model> byId = new HashMap<>(section.rows * 2);
+        try {
+            ByteBuffer reader = section.reader();
+            for (int r = 0; r < section.rows; r++) {
+                Object[] row = CacheFile.Section.next(reader, width + 3);
+                Model model = mapper.create();
+                for (int i = 0; i < width; i++) mapper.set(model, i, lazy[i] ? new LazyText(model, columns[i]) : row[i + 3]);
+                intern(model);
+                model.id = (Integer) row[0];
+                model.create_time = (Timestamp) row[1];
+                model.update_time = (Timestamp) row[2];
+                model.snapshot = model.values(mapper);
+                loaded.add(model);
+                byId.put(model.id, model);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // 快照之后新增或修改的行：update_time精度可能只到秒，取>=
+        String sql = sqlTemplate("modelize_since_", "SELECT " + selection(clazz) + " FROM %s WHERE id > ? OR update_time >= ?;", clazzName);
+        Timestamp mark = section.maxUpdate!=null ? section.maxUpdate : new Timestamp(0);
+        if(dbEngine.stream(sql, rows(clazz, loaded, byId), section.maxId, dbEngine.timeMark(mark))==null) return null;
+        int changed = loaded.size() - section.rows;
+        // 快照之后删除的行：缓存是库的超集，行数一致即无删除
+        Object count = dbEngine.acquire(sqlTemplate("count_", "SELECT COUNT(*) FROM %s;", clazzName));
+        if(!(count instanceof Number)) return null;
+        if(((Number) count).intValue()!=loaded.size()) {
+            HashSet<Integer> ids = dbEngine.stream(sqlTemplate("ids_", "SELECT id FROM %s;", clazzName), rs -> {
+                HashSet<Integer> res = new HashSet<>();
+                while (rs.next()) res.add(rs.getInt(1));
+                return res;
+            });
+            if(ids==null) return null;
+            loaded.removeIf(model -> !ids.contains(model.id));
+        }
+        logger.info(String.format("Restored %d rows of table '%s' from snapshot, %d added since, %d removed since.",
+                section.rows, clazzName, changed, section.rows + changed - loaded.size()));
+        return loaded;
+    }
+    static int refresh(Class<? extends Model> clazz, Manager manager) {
+        String clazzName = clazz.getSimpleName();
+        long time = System.currentTimeMillis();
+        if(flusher!=null) flusher.flush();     // 本进程的待写改动先落库，行数核对才准确
+        ModelMapper<Model> mapper = mapper(clazz);
+        String[] columns = mapper.columns();
+        boolean[] lazy = lazy(clazz);
+        Store collection = collections.get(clazz);
+
+        // 取回改动的行，暂存为游离的模型；update_time精度可能只到秒，取>=
+        ArrayList<Model> fetched = new ArrayList<>();
+        String sql = sqlTemplate("refresh_", "SELECT " + selection(clazz) + " FROM %s WHERE id > ? OR update_time >= ?;", clazzName);
+        Timestamp mark = manager.seenUpdate!=null ? manager.seenUpdate : new Timestamp(0);
+        if(dbEngine.stream(sql, rows(clazz, fetched, null), manager.seenId, dbEngine.timeMark(mark))==null) return 0;
+
+        int merged = 0, added = 0, removed = 0;
+        manager.merging.writeLock().lock();     // 等待进行中的插入回填完id
+        try {
+            for (Model row : fetched) {
+                manager.seen(row.id, row.update_time);
+                Model model = collection.get(row.id);
+                if(model==null) {
+                    if(manager.mode!=CacheMode.ALL) continue;   // 按需载入的模型不理会未载入的行
+                    if(collection.add(row)) manager.indexAdd(row);
+                    manager.seenIds.add(row.id);
+                    added++;
+                    continue;
+                }
+                manager.seenIds.add(row.id);
+                Object[] snapshot = model.snapshot;
+                if(Objects.equals(model.update_time, row.update_time) && sameColumns(snapshot, row.snapshot, lazy)) continue;
+                if(model.update_time!=null && row.update_time!=null && model.update_time.after(row.update_time)) continue;    // 取回之后本地又保存过
+                if(snapshot!=null && model.dirtyFields(model.values(mapper)).length>0) continue;   // 本地改动未保存
+                for (int i = 0; i < row.snapshot.length; i++) {
+                    if(!lazy[i]) mapper.set(model, i, row.snapshot[i]);
+                    else if(mapper.get(model, i)!=null) ((LazyText) mapper.get(model, i)).invalidate();  // 延迟列下次访问时重新查询
+                    else mapper.set(model, i, new LazyText(model, columns[i]));
+                }
+                model.create_time = row.create_time;
+                model.update_time = row.update_time;
+                model.snapshot = model.values(mapper);
+                manager.indexUpdate(model);
+                merged++;
+            }
+        } finally {
+            manager.merging.writeLock().unlock();
+        }
+
+        // 别处删除的行：只删曾确认落库的，本进程尚未提交的插入不在其中
+        if(manager.mode!=CacheMode.ALL) removed = reconcile(clazz, manager);
+        int cached = collection.identified();
+        Object count = manager.mode!=CacheMode.ALL ? null : dbEngine.acquire(sqlTemplate("count_", "SELECT COUNT(*) FROM %s;", clazzName));
+        if(count instanceof Number && ((Number) count).intValue()!=cached) {
+            HashSet<Integer> ids = dbEngine.stream(sqlTemplate("ids_", "SELECT id FROM %s;", clazzName), rs -> {
+                HashSet<Integer> res = new HashSet<>();
+                while (rs.next()) res.add(rs.getInt(1));
+                return res;
+            });
+            if(ids!=null) {
+                for (Model model : collection.snapshot()) {
+                    Integer id = model.id;
+                    if(id!=null && !ids.contains(id) && manager.seenIds.contains(id) && model.uncache()) removed++;
+                }
+                manager.seenIds = ids;
+            }
+        }
+        if(merged + added + removed>0)
+            logger.info(String.format("Refreshed table '%s' in %d ms: %d fetched, %d merged, %d added, %d removed.",
+                    clazzName, System.currentTimeMillis() - time, fetched.size(), merged, added, removed));
+        return merged + added + removed;
+    }
+    private static int reconcile(Class<? extends Model> clazz, Manager manager) {   // 按需载入时只核对已载入的id，每批BATCH_SIZE个
+        ArrayList<Model> cached = new ArrayList<>();
+        for (Model model : collections.get(clazz).snapshot())
+            if(model.id!=null && manager.seenIds.contains(model.id)) cached.add(model);
+        String sql = sqlTemplate("exists_", "SELECT id FROM %s WHERE id IN (" +
+                String.join(", ", Collections.nCopies(BATCH_SIZE, "?")) + ");", clazz.getSimpleName());
+        int removed = 0;
+        for (int from = 0; from < cached.size(); from += BATCH_SIZE) {
+            List<Model> batch = cached.subList(from, Math.min(from + BATCH_SIZE, cached.size()));
+            Object[] ids = new Object[BATCH_SIZE];
+            for (int i = 0; i < ids.length; i++) ids[i] = batch.get(Math.min(i, batch.size() - 1)).id;  // 末批以重复id补足，模板只有一个
+            HashSet<Integer> exists = dbEngine.query(sql, rs -> {
+                HashSet<Integer> res = new HashSet<>();
+                while (rs.next()) res.add(rs.getInt(1));
+                return res;
+            }, ids);
+            if(exists==null) continue;
+            for (Model model : batch) if(!exists.contains(model.id) && model.uncache()) removed++;
+        }
+        return removed;
+    }
+    static Model load(Class<? extends Model> clazz, String field, Object value) {  // 供Manager.get()未命中时载入，不入缓存
+        ArrayList<Model> loaded = new ArrayList<>(1);
+        String sql = sqlTemplate("load_" + field + "_", "SELECT " + selection(clazz) + " FROM %s WHERE " + field + " = ?;", clazz.getSimpleName());
+        if(dbEngine.query(sql, rows(clazz, loaded, null), value)==null || loaded.isEmpty()) return null;
+        return loaded.get(0);
+    }
+    static boolean evict(Model model) {     // 供BOUNDED淘汰：有未保存改动的先保存，写回模式下待落库后再淘汰
+        if(model.id==null) return false;    // 插入尚未完成
+        if(model.isDirty()) {
+            boolean saved = model.save();
+            if(flusher!=null || !saved) return false;
+        }
+        return model.uncache();
+    }
+    static CacheMode cacheMode(Class<? extends Model> clazz) {
+        ModelEntry me = clazz.getDeclaredAnnotation(ModelEntry.class);
+        return me!=null ? me.cache() : CacheMode.ALL;
+    }
+    // Dictionary fields
+    private static final Map<Class<? extends Model>, Accessor[]> dictionaryFields = new ConcurrentHashMap<>();
+    static void intern(Model model) {   // 字典字段换成同值实例；只在模型发布前或其写者线程上调用，值相同，不怕与别处写入交错
+        Accessor[] fields = dictionaryFields.computeIfAbsent(model.getClass(),
+                k -> Arrays.stream(accessors(k)).filter(field -> field.dictionary!=null).toArray(Accessor[]::new));
+        for (Accessor field : fields) {
+            String val = (String) field.get(model);
+            String canonical = field.dictionary.intern(val);
+            if(canonical!=val) field.set(model, canonical);
+        }
+    }
+    // Lazy columns
+    private static final Map<Class<? extends Model>, boolean[]> lazyFields = new ConcurrentHashMap<>();
+    static boolean[] lazy(Class<? extends Model> clazz) {   // 与fieldsets同序，LazyText类型的字段为true
+        return lazyFields.computeIfAbsent(clazz, k -> {
+            ArrayList<Field> fields = fieldsets.get(k);
+            boolean[] lazy = new boolean[fields.size()];
+            for (int i = 0; i < lazy.length; i++) lazy[i] = fields.get(i).getType()==LazyText.class;
+            return lazy;
+        });
+    }
+    private static String selection(Class<? extends Model> clazz) {    // 模型化等查询的列清单，不含延迟列
+        boolean[] lazy = lazy(clazz);
+        String[] columns = mapper(clazz).columns();
+        ArrayList<String> selected = new ArrayList<>(Arrays.asList("id", "create_time", "update_time"));
+        for (int i = 0; i < columns.length; i++) if(!lazy[i]) selected.add(columns[i]);
+        return selected.size()==columns.length + 3 ? "*" : String.join(", ", selected);
+    }
+    private static boolean sameColumns(Object[] a, Object[] b, boolean[] lazy) {
+        if(a==null || b==null) return a==b;
+        for (int i = 0; i < lazy.length; i++) if(!lazy[i] && !Objects.deepEquals(a[i], b[i])) return false;
+        return true;
+    }
+    private void settle(ModelMapper<Model> mapper, Object[] values) {   // 落库之后，延迟列的值转为软引用
+        boolean[] lazy = lazy(this.getClass());
+        String[] columns = null;
+        for (int i = 0; i < lazy.length; i++) {
+            if(!lazy[i] || values[i]==null) continue;
+            LazyText text = (LazyText) mapper.get(this, i);
+            if(columns==null) columns = mapper.columns();
+            if(text!=null) text.settle(this, columns[i], (LazyText) values[i]);
+        }
+    }
+    static boolean loadText(Model model, String column, LazyText text) {
+        String sql = sqlTemplate("text_" + column + "_", "SELECT " + column + " FROM %s WHERE id = ?;", model.getClass().getSimpleName());
+        Boolean found = dbEngine.query(sql, rs -> {
+            if(!rs.next()) return false;
+            text.loaded(rs.getString(1));
+            return true;
+        }, model.id);
+        return found!=null && found;
+    }
+    static int loadTexts(Class<? extends Model> clazz, int index, Collection<? extends Model> models) {  // 供Manager.preload()，每批BATCH_SIZE个
+        ModelMapper<Model> mapper = mapper(clazz);
+        String column = mapper.columns()[index];
+        HashMap<Integer, LazyText> pending = new HashMap<>();
+        for (Model model : models) {
+            Object text = mapper.get(model, index);
+            if(model.id!=null && text instanceof LazyText && !((LazyText) text).isLoaded()) pending.put(model.id, (LazyText) text);
+        }
+        ArrayList<Integer> ids = new ArrayList<>(pending.keySet());
+        String sql = sqlTemplate("texts_" + column + "_", "SELECT id, " + column + " FROM %s WHERE id IN (" +
+                String.join(", ", Collections.nCopies(BATCH_SIZE, "?")) + ");", clazz.getSimpleName());
+        int loaded = 0;
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            List<Integer> batch = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+            Object[] params = new Object[BATCH_SIZE];
+            for (int i = 0; i < params.length; i++) params[i] = batch.get(Math.min(i, batch.size() - 1));  // 末批以重复id补足
+            Integer n = dbEngine.query(sql, rs -> {
+                int count = 0;
+                while (rs.next()) {
+                    LazyText text = pending.get(rs.getInt(1));
+                    if(text!=null) { text.loaded(rs.getString(2)); count++; }
+                }
+                return count;
+            }, params);
+            if(n!=null) loaded += n;
+        }
+        return loaded;
+    }
+    static Collection<Model> cached(Class<? extends Model> clazz) { return collections.get(clazz).snapshot(); }
+    static Object[] row(Model model) {     // 供CacheFile写快照：id, create_time, update_time及各自定义字段
+        Object[] values = model.snapshot;   // 取上次载入/保存时的值，未保存的改动不能在下次启动时当作已落库
+        if(values==null) return new Object[] { null };  // 尚未落库的
+        Object[] row = new Object[values.length + 3];
+        row[0] = model.id;
+        row[1] = model.create_time;
+        row[2] = model.update_time;
+        System.arraycopy(values, 0, row, 3, values.length);
+        return row;
+    }
+    static String signature(Class<? extends Model> clazz) {     // 字段名与类型，任一变化即不能从快照载入
+        StringBuilder sb = new StringBuilder(clazz.getName());
+        for (Field field : fieldsets.get(clazz)) sb.append(',').append(field.getName()).append(':').append(field.getType().getName());
+        return sb.toString();
     }
     private void sqlize() { // reflect model class, generate sql CREATE TABLE and execute it
         Class<? extends Model> clazz = this.getClass();
         String clazzName = clazz.getSimpleName();
-        ArrayList<Field> fields = fieldsets.get(clazz);
+        ModelMapper<Model> mapper = mapper(clazz);
+        String[] fields = mapper.columns();
 
         if(dbEngine.dbSchema.containsKey(clazzName)) {    // 表修改对照
             HashSet<String> columns = dbEngine.dbSchema.get(clazzName);
-            for (Field field : fields) {
-                String name = field.getName();
+            for (int i = 0; i < fields.length; i++) {
+                String name = fields[i];
                 if(!columns.contains(name)) {
                     logger.info(String.format("Changes detected, add field '%s' to model '%s'.", name, clazzName));
                     Table table = dbEngine.sqlBuilder.alterTable(clazzName);
                     table.add(String.format("`%s`", name));
-                    String sql = defineColumn(field, table).end().end();
+                    String sql = mapper.define(i, table).end().end();
                     dbEngine.execute(sql);
-                }
+                    columns.add(name);
+                } else reencode(clazzName, fieldsets.get(clazz).get(i));
             }
         } else {    // 初次建表
             logger.info(String.format("Fresh start, sqlizing for model '%s'.", clazzName));
             Table table = dbEngine.sqlBuilder.createTable(String.format("`%s`", clazzName));
             try {
                 table.column(defineColumn(Model.class.getDeclaredField("id"), table));
-                for (Field field : fields) table.column(defineColumn(field, table));
+                for (int i = 0; i < fields.length; i++) table.column(mapper.define(i, table));
                 table.column(defineColumn(Model.class.getDeclaredField("create_time"), table));
                 table.column(defineColumn(Model.class.getDeclaredField("update_time"), table));
             } catch (NoSuchFieldException e) { /* INTERNAL ERROR */ }
@@ -107,61 +425,197 @@ public abstract class Model {
             if(me!=null) table.engine(me.engine()).charset(me.charset()).comment(me.comment());
             String sql = table.end();
             if(dbEngine.execute(sql)!=0) logger.warn("CREATE TABLE returned None-Zero value, maybe a fault.");
+            HashSet<String> columns = new HashSet<>(Arrays.asList(fields));  // 供写入结构缓存
+            columns.addAll(Arrays.asList("id", "create_time", "update_time"));
+            dbEngine.dbSchema.put(clazzName, columns);
         }
+        String trigger = dbEngine.touchTrigger(clazzName);  // 新表与已有的表都补建，已存在时不重复
+        if(trigger!=null && dbEngine.execute(trigger)<0) logger.warn(String.format("Failed creating update_time trigger for model '%s'.", clazzName));
     }
-    private Table.Column defineColumn(Field field, Table table) {
+    private static void reencode(String table, Field field) {  // 字段改为紧凑编码后换算已有的列
+        if(!TypeMap.isCompact(field)) return;
+        String name = field.getName();
+        String type = TypeMap.compactType(field.getType().getTypeName());
+        if(dbEngine.encoded(table, name, type)) return;
+        logger.info(String.format("Encoding changed, re-encoding field '%s' of model '%s'.", name, table));
         FieldEntry fe = field.getDeclaredAnnotation(FieldEntry.class);
-        Table.Column column = new Table.Column(String.format("`%s`", field.getName()), table);
-        // Type + length
-        String t = TypeMap.lookup(field.getType());
-        if(t.equals("VARCHAR")) {
-            if(fe.length()>0) column.type(String.format("VARCHAR(%d)", fe.length()));
-            else if(fe.length()==0) column.type("TEXT");
-            else column.type(String.format("CHAR(%d)", -fe.length()));
-        } else column.type(t);
-        // Default
-        if(!fe.defaultValue().isEmpty()) {
-            String strVal = fe.defaultValue();
-            Object val;
-            try {
-                val = Integer.parseInt(strVal);
-            } catch (NumberFormatException e1) {
-                try {
-                    val = Double.parseDouble(strVal);
-                } catch (NumberFormatException e2) {
-                    val = strVal;
-                }
-            }
-            column.defaultValue(val);
-        }
-        // PK + AI
-        if(fe.identity()) column.type("INTEGER").autoIncrement();
-        // Attributes
-        column.unique(fe.unique()).notNull(fe.notNull())
-                .initSetCurrent(fe.initSetCurrent())
-                .updateSetCurrent(fe.updateSetCurrent());
-        return column;
+        String definition = type + (fe.notNull() ? " NOT NULL" : "") + (fe.unique() ? " UNIQUE" : "");
+        Class<?> clazz = field.getType();
+        if(!dbEngine.reencode(table, name, type, definition, value -> compact(clazz, value)))
+            logger.error(String.format("Failed re-encoding field '%s' of model '%s', will retry on next start.", name, table));
+    }
+    private static Object compact(Class<?> type, Object value) {    // 旧编码的值换算为紧凑编码
+        if(type==UUID.class) return value instanceof byte[] ? value : ModelMapper.encodeUUID(UUID.fromString(value.toString()));
+        Long millis = Predicates.toMillis(value);
+        if(millis==null) throw new IllegalArgumentException(String.format("Cannot convert '%s' to epoch millis.", value));
+        return millis;
+    }
+    static Table.Column defineColumn(Field field, Table table) {
+        FieldEntry fe = field.getDeclaredAnnotation(FieldEntry.class);
+        String type = TypeMap.isCompact(field) ? TypeMap.compactType(field.getType().getTypeName())
+                : TypeMap.columnType(TypeMap.lookup(field.getType()), fe.length());  // Type + length
+        return ModelMapper.column(table, field.getName(), type, fe.defaultValue(),
+                fe.unique(), fe.notNull(), fe.identity(), fe.initSetCurrent(), fe.updateSetCurrent());
     }
 
     // Event Hook
-    protected void onModelized() { /* called after modelize() */ }
+    protected void onModelized() { /* called after all models are modelize()d, in registration order */ }
 
     // Auto-generated and managed fields
     @FieldEntry(identity = true)
-    private Integer id;
+    private volatile Integer id;                // 写回模式下由刷写线程回填
     @FieldEntry(initSetCurrent = true)
-    public Timestamp create_time;
+    public volatile Timestamp create_time;
     @FieldEntry(updateSetCurrent = true)
-    public Timestamp update_time;
+    public volatile Timestamp update_time;
+    transient volatile int slot = -1;           // 在所属Store中的下标，-1为不在缓存中
+
+    // Dirty tracking
+    private transient volatile Object[] snapshot;   // 上次载入/保存时各字段的值，与fieldsets同序
+    private Object[] values(ModelMapper<Model> mapper) {    // 须在绑定参数之前取，以免漏掉写库期间的改动
+        Object[] values = new Object[fieldsets.get(this.getClass()).size()];
+        Accessor[] fields = accessors(this.getClass());
+        for (int i = 0; i < values.length; i++) {
+            Object val = mapper.get(this, i);
+            if(fields[i].dictionary!=null) val = fields[i].dictionary.intern((String) val);  // 快照也只引用字典中的实例
+            else if(val instanceof Timestamp) val = ((Timestamp) val).clone();     // Timestamp/byte[]可变，须复制
+            else if(val instanceof byte[]) val = ((byte[]) val).clone();
+            else if(val instanceof LazyText) val = ((LazyText) val).frozen();
+            values[i] = val;
+        }
+        return values;
+    }
+    private int[] dirtyFields(Object[] values) {
+        Object[] snapshot = this.snapshot;
+        int[] dirty = new int[values.length];
+        int n = 0;
+        for (int i = 0; i < values.length; i++)
+            if(snapshot==null || !Objects.deepEquals(snapshot[i], values[i])) dirty[n++] = i;    // byte[]按内容比较
+        return n==values.length ? dirty : Arrays.copyOf(dirty, n);
+    }
+    public boolean isDirty() { return id==null || dirtyFields(values(mapper(this.getClass()))).length>0; }
+    private Model copy(ModelMapper<Model> mapper) {     // 字段值的副本，异步写库时从副本绑定参数，不受之后改动的影响
+        Object[] values = values(mapper);
+        Model copy = mapper.create();
+        for (int i = 0; i < values.length; i++) mapper.set(copy, i, values[i]);
+        return copy;
+    }
 
     // Operations on one model instance
-    public static void beginUpdate() { dbEngine.begin(); }
-    public static void endUpdate() { dbEngine.commit(); }
+    public static void beginUpdate() { if(flusher==null) dbEngine.begin(); }    // 本线程的事务，推荐改用Akasha.transaction()；写回模式下事务由刷写线程划分
+    public static void endUpdate() { if(flusher==null) dbEngine.commit(); }
+    static boolean isWriteBehind() { return flusher!=null; }
+    static Transaction transaction() { return dbEngine.transaction(); }
     public boolean exists() { return id!=null; }
-    public boolean remove() { return id!=null && delete(); }
-    public boolean save() { return id==null ? insert() : update(); }
-    private boolean insert() {
+    public boolean remove() {
+        if(flusher==null) return id!=null && delete();
+        if(!uncache()) return false;
+        flusher.enqueue(this, true);
+        return true;
+    }
+    public boolean save() {
+        if(flusher==null) return id==null ? insert() : update();
+        cache();
+        flusher.enqueue(this, false);
+        return true;
+    }
+    private boolean insert() { return insertAll(Collections.singletonList(this))==1; }
+    private void cache() {      // 写回/异步模式下在调用线程上先行更新缓存与索引
+        Class<? extends Model> clazz = this.getClass();
+        if(collections.get(clazz).add(this)) {
+            managers.get(clazz).indexAdd(this);
+            managers.get(clazz).trim();
+        } else managers.get(clazz).indexUpdate(this);
+    }
+    private boolean uncache() {
         Class<? extends Model> clazz = this.getClass();
+        if(!collections.get(clazz).remove(this)) return false;
+        managers.get(clazz).indexRemove(this);
+        return true;
+    }
+
+    /*
+     *  异步写库，在Akasha持有的线程池上执行，返回是否成功
+     *    1.字段值在调用时取副本，之后在游戏线程上的改动不会混入本次写入
+     *    2.缓存与索引在调用线程上先行更新；写库失败时模型仍留在缓存中(新模型的id保持为null)
+     *    3.id/create_time/update_time由线程池回填(volatile)，可在future完成后读取
+     *    4.同一模型的多次异步操作按调用顺序执行：后一个接在前一个完成之后，id等在执行时才取，
+     *      如removeAsync()紧跟在尚未完成的saveAsync()插入之后，会删掉刚插入的行
+     *    5.写回模式下等同于save()/remove()，立即完成
+     */
+    private transient CompletableFuture<Boolean> lastAsync;    // 本模型最近一次异步写库，由asyncLock保护
+    private static final Object asyncLock = new Object();
+    private static CompletableFuture<Boolean> chain(Collection<? extends Model> models, Supplier<Boolean> task) {  // 接在这些模型此前未完成的异步操作之后
+        synchronized (asyncLock) {
+            ArrayList<CompletableFuture<Boolean>> previous = new ArrayList<>();
+            for (Model model : models)
+                if(model.lastAsync!=null && !model.lastAsync.isDone()) previous.add(model.lastAsync);
+            CompletableFuture<Boolean> future = previous.isEmpty() ? CompletableFuture.supplyAsync(task, executor)
+                    : CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0]))
+                        .handle((v, e) -> null)     // 前一个失败也照常执行
+                        .thenApplyAsync(v -> task.get(), executor);
+            for (Model model : models) model.lastAsync = future;
+            return future;
+        }
+    }
+    public CompletableFuture<Boolean> saveAsync() {
+        if(flusher!=null) return CompletableFuture.completedFuture(save());
+        Model copy = copy(mapper(this.getClass()));
+        cache();
+        return chain(Collections.singletonList(this), () -> {
+            if(id!=null) return update(copy, false);
+            IdentityHashMap<Model, Model> copies = new IdentityHashMap<>();
+            copies.put(this, copy);
+            return insertAll(Collections.singletonList(this), copies, false)==1;
+        });
+    }
+    public CompletableFuture<Boolean> removeAsync() {
+        if(flusher!=null) return CompletableFuture.completedFuture(remove());
+        if(!uncache()) return CompletableFuture.completedFuture(false);
+        return chain(Collections.singletonList(this), () -> id!=null && delete(false));
+    }
+    static CompletableFuture<Boolean> saveAllAsync(Collection<? extends Model> models) {
+        if(flusher!=null) {
+            for (Model model : models) model.save();
+            return CompletableFuture.completedFuture(true);
+        }
+        IdentityHashMap<Model, Model> copies = new IdentityHashMap<>();
+        for (Model model : models) copies.put(model, model.copy(mapper(model.getClass())));
+        for (Model model : copies.keySet()) model.cache();
+        return chain(copies.keySet(), () -> {
+            ArrayList<Model> inserts = new ArrayList<>();
+            ArrayList<Model> updates = new ArrayList<>();
+            for (Model model : copies.keySet()) (model.id==null ? inserts : updates).add(model);
+            try (Transaction tx = dbEngine.transaction()) {
+                boolean success = insertAll(inserts, copies, false)==inserts.size();
+                for (Model model : updates) success &= model.update(copies.get(model), false);
+                return tx.commit() && success;
+            }
+        });
+    }
+
+    // Bulk operations
+    private static final int BATCH_SIZE = 500;   // 每批executeBatch的行数
+    /*
+     *  批量插入未保存的模型(id为null的)，返回成功插入的个数
+     *    按模型类分组，每组分批走addBatch/executeBatch，主键取自getGeneratedKeys()
+     *    create_time/update_time由每批一次的后续查询取回
+     */
+    public static int insertAll(Collection<? extends Model> models) { return insertAll(models, null, flusher==null); }
+    private static int insertAll(Collection<? extends Model> models, IdentityHashMap<Model, Model> copies, boolean cache) {
+        LinkedHashMap<Class<? extends Model>, ArrayList<Model>> groups = new LinkedHashMap<>();
+        for (Model model : models)
+            if(model.id==null) groups.computeIfAbsent(model.getClass(), k -> new ArrayList<>()).add(model);
+        int count = 0;
+        for (Map.Entry<Class<? extends Model>, ArrayList<Model>> group : groups.entrySet()) {
+            ArrayList<Model> batch = group.getValue();
+            for (int from = 0; from < batch.size(); from += BATCH_SIZE)
+                count += insertBatch(group.getKey(), batch.subList(from, Math.min(from + BATCH_SIZE, batch.size())), copies, cache);
+            if(cache) managers.get(group.getKey()).trim();
+        }
+        return count;
+    }
+    private static int insertBatch(Class<? extends Model> clazz, List<Model> batch, IdentityHashMap<Model, Model> copies, boolean cache) {
         String clazzName = clazz.getSimpleName();
         ArrayList<Field> fields = fieldsets.get(clazz);
 
@@ -175,86 +629,143 @@ public abstract class Model {
             sqlTemplates.put(sqlName, sql);
             logger.info("INSERT template cached");
         }
-        ArrayList<Object> values = new ArrayList<>();
-        for (Field field : fields) {
-            try {
-                Object val = field.get(this);
-                if(val instanceof UUID) val = val.toString();   // FIXME: 上传数据类型转换，特殊处理是不好的设计
-                values.add(val);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
-        }
-        Object[] vals = values.toArray(new Object[values.size()]);
-        if (dbEngine.execute(sql, vals) != 1) {
-            logger.error("INSERT rejected, probably breaks constraints.");
-            return false;
+        ModelMapper<Model> mapper = mapper(clazz);
+        ArrayList<Binder> rows = new ArrayList<>(batch.size());
+        Object[][] values = new Object[batch.size()][];
+        for (int i = 0; i < values.length; i++) {
+            Model source = copies!=null ? copies.get(batch.get(i)) : batch.get(i);   // 有副本时从副本绑定
+            values[i] = source.values(mapper);
+            rows.add(ps -> mapper.bind(source, ps, 1));
         }
+        Lock inserting = managers.get(clazz).merging.readLock();   // 插入到回填id之间不与refresh()的合并交错，以免重复
+        inserting.lock();
+        try {
+            int[] ids = dbEngine.insert(sql, rows);
+            if (ids == null) {
+                logger.error("INSERT rejected, probably breaks constraints.");
+                return 0;
+            }
 
-        sqlName = "insert_meta_%s" + clazzName;
-        sql = sqlTemplates.get(sqlName);
-        if(sql==null) {
-            if(dbEngine instanceof MySQLEngine)
-                sql = dbEngine.sqlBuilder.select("id", "create_time", "update_time").from(clazzName)
-                        .where("id").eq("SELECT @@IDENTITY").end();
-            else
-                sql = dbEngine.sqlBuilder.select("id", "create_time", "update_time").from(clazzName)
-                        .where("id").eq("SELECT MAX(id) FROM " + clazzName).end();
-            sqlTemplates.put(sqlName, sql);
-        }
-        ArrayList<Object> res = dbEngine.fetch(sql);
-        id = ((Number) res.get(0)).intValue();
-        create_time = res.get(1) instanceof Timestamp ? (Timestamp) res.get(1) : Timestamp.valueOf(res.get(1).toString());
-        update_time = res.get(2) instanceof Timestamp ? (Timestamp) res.get(2) : Timestamp.valueOf(res.get(2).toString());
+            sql = sqlTemplate("insert_meta_", "SELECT id, create_time, update_time FROM %s WHERE id BETWEEN ? AND ?;", clazzName);
+            int minId = Integer.MAX_VALUE, maxId = Integer.MIN_VALUE;
+            for (int id : ids) { minId = Math.min(minId, id); maxId = Math.max(maxId, id); }
+            HashMap<Integer, Timestamp[]> metas = new HashMap<>();
+            dbEngine.query(sql, rs -> {
+                while (rs.next()) metas.put(rs.getInt(1), new Timestamp[] { rs.getTimestamp(2), rs.getTimestamp(3) });
+                return null;
+            }, minId, maxId);
 
-        collections.get(this.getClass()).add(this);  // add to cache
-        return true;
+            Store collection = collections.get(clazz);
+            Manager manager = managers.get(clazz);
+            ArrayList<Model> inserted = new ArrayList<>(batch);
+            for (int i = 0; i < ids.length; i++) {
+                Model model = inserted.get(i);
+                Timestamp[] meta = metas.get(ids[i]);
+                model.id = ids[i];
+                if(meta!=null) {
+                    model.create_time = meta[0];
+                    model.update_time = meta[1];
+                }
+                model.snapshot = values[i];
+                if(cache) {
+                    collection.add(model);  // add to cache
+                    manager.indexAdd(model);
+                } else collection.identify(model);     // 写回/异步模式下已在调用线程上入缓存，补登id
+            }
+            dbEngine.onEnd(() -> {
+                for (int i = 0; i < values.length; i++) inserted.get(i).settle(mapper, values[i]);
+            }, () -> {      // 外层事务回滚：恢复为未保存的模型
+                for (Model model : inserted) {
+                    if(cache) {
+                        if(collection.remove(model)) manager.indexRemove(model);
+                    } else collection.unidentify(model);
+                    model.id = null;
+                    model.create_time = null;
+                    model.update_time = null;
+                    model.snapshot = null;
+                }
+            });
+            return ids.length;
+        } finally {
+            inserting.unlock();
+        }
     }
-    private boolean update() {
+    boolean update() { return update(this, flusher==null); }
+    private boolean update(Model source, boolean cache) {   // source为绑定参数的来源，本模型或其副本
         Class<? extends Model> clazz = this.getClass();
         String clazzName = clazz.getSimpleName();
         ArrayList<Field> fields = fieldsets.get(clazz);
+        ModelMapper<Model> mapper = mapper(clazz);
 
-        String sqlName = "update_%s" + clazzName;
-        String sql = sqlTemplates.get(sqlName);
+        Object[] values = source.values(mapper);
+        int[] dirty = dirtyFields(values);
+        if (dirty.length == 0) return true;     // 未改动，无需写库
+        if (dirty.length > fields.size() / 2) { // 改动较多时直接整行更新，也限制了模板的组合数；未改动的延迟列不写回
+            boolean[] lazy = lazy(clazz), changed = new boolean[fields.size()];
+            for (int i : dirty) changed[i] = true;
+            int[] all = new int[fields.size()];
+            int n = 0;
+            for (int i = 0; i < all.length; i++) if(!lazy[i] || changed[i]) all[n++] = i;
+            dirty = Arrays.copyOf(all, n);
+        }
+        StringBuilder sqlName = new StringBuilder("update_").append(clazzName);
+        for (int i : dirty) sqlName.append('_').append(i);
+        String sql = sqlTemplates.get(sqlName.toString());
         if (sql == null) {
             Query sqlUpdate = dbEngine.sqlBuilder.update(clazz.getSimpleName());
-            for (Field field : fields) sqlUpdate.set(field.getName());
+            for (int i : dirty) sqlUpdate.set(fields.get(i).getName());
             sql = sqlUpdate.where("id").eq().end();
-            sqlTemplates.put(sqlName, sql);
+            sqlTemplates.put(sqlName.toString(), sql);
             logger.info("UPDATE template cached");
         }
-        ArrayList<Object> values = new ArrayList<>();
-        for (Field field : fields) {
-            try {
-                Object val = field.get(this);
-                if(val instanceof UUID) val = val.toString();   // FIXME: 上传数据类型转换，特殊处理是不好的设计
-                values.add(val);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
-        }
-
-        values.add(id);
-        Object[] vals = values.toArray(new Object[values.size()]);
-        if (dbEngine.execute(sql, vals) != 1) {
+        int[] columns = dirty;
+        if (dbEngine.execute(sql, ps -> {
+            for (int i = 0; i < columns.length; i++) mapper.bindField(source, columns[i], ps, i + 1);
+            ps.setInt(columns.length + 1, id);
+        }) != 1) {
             logger.error("UPDATE rejected, probably not exists or breaks constraints.");
             return false;
         }
 
-        sql = String.format("SELECT update_time FROM %s WHERE id = ?;", clazzName);
+        sql = sqlTemplate("update_time_", "SELECT update_time FROM %s WHERE id = ?;", clazzName);
         Object res = dbEngine.acquire(sql, id);
+        if(res==null) {     // 行在更新之后即被别的进程删除(或查询失败)，模型已过时，保持脏状态，由refresh()核对删除
+            logger.warn(String.format("Row of '%s' vanished right after UPDATE, probably removed elsewhere.", this));
+            return false;
+        }
+        Timestamp updated = update_time;
+        Object[] saved = snapshot;
         update_time = res instanceof Timestamp ? (Timestamp) res : Timestamp.valueOf(res.toString());
+        snapshot = values;
+        if(cache) managers.get(clazz).indexUpdate(this);
+        dbEngine.onEnd(() -> settle(mapper, values), () -> {   // 外层事务回滚：恢复快照，改动重新算作未保存
+            if(snapshot!=values) return;
+            update_time = updated;
+            snapshot = saved;
+        });
         return true;
     }
-    private boolean delete() {
-        String sql = String.format("DELETE FROM %s WHERE id = ?;", this.getClass().getSimpleName());
+    boolean delete() { return delete(flusher==null); }
+    private boolean delete(boolean cache) {
+        String sql = sqlTemplate("delete_", "DELETE FROM %s WHERE id = ?;", this.getClass().getSimpleName());
         if(dbEngine.execute(sql, id)!=1) {
             logger.error("DELETE rejected, probably not exists or breaks constraints.");
             return false;
         }
+        if(cache) {     // 先出缓存再清id，Store按id摘除
+            collections.get(this.getClass()).remove(this);  // remove from cache
+            managers.get(this.getClass()).indexRemove(this);
+        }
+        Integer deleted = id;
+        Object[] saved = snapshot;
         id = null;
-        collections.get(this.getClass()).remove(this);  // remove from cache
+        snapshot = null;
+        dbEngine.onEnd(null, () -> {    // 外层事务回滚：行仍在库中，恢复id；写回/异步模式下由调用方决定是否重新入缓存
+            if(id!=null) return;
+            id = deleted;
+            snapshot = saved;
+            if(cache && collections.get(this.getClass()).add(this)) managers.get(this.getClass()).indexAdd(this);
+        });
         return true;
     }
 
@@ -266,16 +777,11 @@ public abstract class Model {
         Class<? extends Model> clazz = this.getClass();
         String clazzName = clazz.getSimpleName();
         ArrayList<String> segs = new ArrayList<>();
-        for(Field field : fieldsets.get(clazz)) {
-            field.setAccessible(true);
-            String name = field.getName();
-            String value = "<NoAccess>";
-            try {
-                Object val = field.get(this);
-                value = val==null ? "" : TypeMap.isNumeric(val.getClass()) ?
-                        val.toString() : String.format("'%s'", val.toString());
-            } catch (IllegalAccessException ignored) { }
-            segs.add(String.format("%s=%s", name, value));
+        for(Accessor field : accessors.get(clazz)) {
+            Object val = field.get(this);
+            String value = val==null ? "" : TypeMap.isNumeric(val.getClass()) ?
+                    val.toString() : String.format("'%s'", val.toString());
+            segs.add(String.format("%s=%s", field.name, value));
         }
         String fields = String.join(", ", segs);
         return String.format("%s{id=%s, %s, create_time='%s', update_time='%s'}",
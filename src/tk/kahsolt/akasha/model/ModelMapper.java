@@ -0,0 +1,161 @@
+package tk.kahsolt.akasha.model;
+
+import tk.kahsolt.akasha.db.ColumnReader;
+import tk.kahsolt.sqlbuilder.sql.Table;
+
+import java.sql.*;
+import java.util.UUID;
+
+public abstract class ModelMapper<T extends Model> {
+
+    /*
+     *  模型与数据表之间的映射器，只处理自定义字段(默认字段id/create_time/update_time由Model处理)
+     *    1.若编译期启用了ModelProcessor，会为每个模型生成<模型名>_Mapper，无反射地完成映射
+     *    2.否则Akasha.register()退回到基于反射的ReflectiveMapper
+     *  各方法中的字段下标均与columns()同序
+     */
+
+    public abstract String[] columns();                                     // 自定义字段名
+    public abstract T create();                                             // 无参构造
+    public abstract void read(T model, ResultSet rs, int[] indexes) throws SQLException;          // 行映射，indexes为各字段的列号
+    public abstract void bind(T model, PreparedStatement ps, int offset) throws SQLException;     // 绑定参数，从offset号参数起
+    public abstract void bindField(T model, int index, PreparedStatement ps, int parameter) throws SQLException;  // 只绑定一个字段，供部分列UPDATE
+    public abstract Table.Column define(int index, Table table);            // 建表/加列的列定义
+    public abstract Object get(T model, int index);
+    public abstract void set(T model, int index, Object value);
+
+    // 供生成代码使用的列定义与类型读写
+    protected static Table.Column column(Table table, String name, String type, String defaultValue,
+                                         boolean unique, boolean notNull, boolean identity,
+                                         boolean initSetCurrent, boolean updateSetCurrent) {
+        Table.Column column = new Table.Column(String.format("`%s`", name), table);
+        column.type(type);
+        // Default
+        if(!defaultValue.isEmpty()) {
+            Object val;
+            if(defaultValue.equalsIgnoreCase("true") || defaultValue.equalsIgnoreCase("false"))
+                defaultValue = defaultValue.equalsIgnoreCase("true") ? "1" : "0";   // BOOLEAN列，SQLite/MySQL均存为1/0
+            try {
+                val = Integer.parseInt(defaultValue);
+            } catch (NumberFormatException e1) {
+                try {
+                    val = Double.parseDouble(defaultValue);
+                } catch (NumberFormatException e2) {
+                    val = defaultValue;
+                }
+            }
+            column.defaultValue(val);
+        }
+        // PK + AI
+        if(identity) column.type("INTEGER").autoIncrement();
+        // Attributes
+        column.unique(unique).notNull(notNull)
+                .initSetCurrent(initSetCurrent)
+                .updateSetCurrent(updateSetCurrent);
+        return column;
+    }
+    protected static Integer readInteger(ResultSet rs, int index) throws SQLException {
+        int val = rs.getInt(index);
+        return rs.wasNull() ? null : val;
+    }
+    protected static Double readDouble(ResultSet rs, int index) throws SQLException {
+        double val = rs.getDouble(index);
+        return rs.wasNull() ? null : val;
+    }
+    protected static Long readLong(ResultSet rs, int index) throws SQLException {
+        long val = rs.getLong(index);
+        return rs.wasNull() ? null : val;
+    }
+    protected static Boolean readBoolean(ResultSet rs, int index) throws SQLException {
+        boolean val = rs.getBoolean(index);
+        return rs.wasNull() ? null : val;
+    }
+    protected static UUID readUUID(ResultSet rs, int index) throws SQLException {
+        String val = rs.getString(index);
+        return val!=null ? UUID.fromString(val) : null;
+    }
+    protected static void writeInteger(PreparedStatement ps, int index, Integer value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.INTEGER);
+        else ps.setInt(index, value);
+    }
+    protected static void writeDouble(PreparedStatement ps, int index, Double value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.DOUBLE);
+        else ps.setDouble(index, value);
+    }
+    protected static void writeLong(PreparedStatement ps, int index, Long value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.BIGINT);
+        else ps.setLong(index, value);
+    }
+    protected static void writeBoolean(PreparedStatement ps, int index, Boolean value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.BOOLEAN);
+        else ps.setBoolean(index, value);
+    }
+    protected static void writeBytes(PreparedStatement ps, int index, byte[] value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.BLOB);
+        else ps.setBytes(index, value);
+    }
+    // 原始类型，不装箱
+    protected static void writeInteger(PreparedStatement ps, int index, int value) throws SQLException { ps.setInt(index, value); }
+    protected static void writeLong(PreparedStatement ps, int index, long value) throws SQLException { ps.setLong(index, value); }
+    protected static void writeDouble(PreparedStatement ps, int index, double value) throws SQLException { ps.setDouble(index, value); }
+    protected static void writeFloat(PreparedStatement ps, int index, float value) throws SQLException { ps.setFloat(index, value); }
+    protected static void writeBoolean(PreparedStatement ps, int index, boolean value) throws SQLException { ps.setBoolean(index, value); }
+    protected static void writeString(PreparedStatement ps, int index, String value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.VARCHAR);
+        else ps.setString(index, value);
+    }
+    protected static void writeUUID(PreparedStatement ps, int index, UUID value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.CHAR);
+        else ps.setString(index, value.toString());
+    }
+    protected static void writeLazyText(PreparedStatement ps, int index, LazyText value) throws SQLException {
+        writeString(ps, index, value!=null ? value.get() : null);
+    }
+    protected static void writeTimestamp(PreparedStatement ps, int index, Timestamp value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.TIMESTAMP);
+        else ps.setTimestamp(index, value);
+    }
+
+    /*
+     *  紧凑编码(FieldEntry.compact())的读写
+     *    UUID为16字节大端序(高64位在前)，按位拼装，不经字符串与ByteBuffer；Timestamp为纪元毫秒
+     */
+    protected static UUID readCompactUUID(ResultSet rs, int index) throws SQLException { return decodeUUID(rs.getBytes(index)); }
+    protected static Timestamp readCompactTimestamp(ResultSet rs, int index) throws SQLException {
+        long val = rs.getLong(index);
+        return rs.wasNull() ? null : new Timestamp(val);
+    }
+    protected static void writeCompactUUID(PreparedStatement ps, int index, UUID value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.BINARY);
+        else ps.setBytes(index, encodeUUID(value));
+    }
+    protected static void writeCompactTimestamp(PreparedStatement ps, int index, Timestamp value) throws SQLException {
+        if(value==null) ps.setNull(index, Types.BIGINT);
+        else ps.setLong(index, value.getTime());
+    }
+    public static ColumnReader compactReader(Class<?> type) {   // 供ReflectiveMapper
+        if(type==UUID.class) return ModelMapper::readCompactUUID;
+        if(type==Timestamp.class) return ModelMapper::readCompactTimestamp;
+        return null;
+    }
+    public static byte[] encodeUUID(UUID value) {
+        byte[] bytes = new byte[16];
+        long msb = value.getMostSignificantBits(), lsb = value.getLeastSignificantBits();
+        for (int i = 7; i >= 0; i--, msb >>>= 8, lsb >>>= 8) {
+            bytes[i] = (byte) msb;
+            bytes[i + 8] = (byte) lsb;
+        }
+        return bytes;
+    }
+    public static UUID decodeUUID(byte[] bytes) {
+        if(bytes==null) return null;
+        if(bytes.length!=16) throw new IllegalArgumentException(String.format("Expected 16 bytes for UUID, got %d.", bytes.length));
+        long msb = 0, lsb = 0;
+        for (int i = 0; i < 8; i++) {
+            msb = msb << 8 | bytes[i] & 0xFF;
+            lsb = lsb << 8 | bytes[i + 8] & 0xFF;
+        }
+        return new UUID(msb, lsb);
+    }
+
+}
@@ -0,0 +1,401 @@
+package tk.kahsolt.akasha.model;
+
+import tk.kahsolt.akasha.model.Manager.CompareOperator;
+
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+final class Predicates {
+
+    /*
+     *  将Filter的单个条件预编译为类型特化的谓词，右值只解析一次
+     *    1.Integer/Timestamp条件统一化为闭区间[lo, hi](long)，逐行只做两次整数比较
+     *    2.Double条件按运算符生成专门的比较
+     *    3.String/UUID条件预先算好右值；UUID的等值比较不再逐行toString()
+     *    4.左值为null时除NULL外一律不通过；右值无法转换时整个条件不通过
+     *    5.原始类型的字段经Accessor.getLong()/getDouble()读取，不装箱；int/long/boolean在long上比较(boolean为0/1)，
+     *      float/double在double上比较(float字段的右值先舍入为float)；byte[]只支持等值比较，按内容
+     */
+
+    static final Predicate<Model> NONE = model -> false;
+
+    private Predicates() { }
+
+    static Predicate<Model> compile(Accessor field, CompareOperator operator, Object... values) {
+        if(field==null) return NONE;    // 无此字段，全部筛除
+        Class<?> type = field.type;
+        switch (operator) {
+            case NULL:      return type.isPrimitive() ? NONE : model -> read(field, model)==null;
+            case NOT_NULL:  return type.isPrimitive() ? model -> true : model -> read(field, model)!=null;
+            case LIKE:      // only valid for String/UUID
+                if(!TypeMap.isTextual(type) || values[0]==null) return NONE;
+                String pattern = values[0].toString();
+                if(type==String.class) return model -> {
+                    String val = (String) read(field, model);
+                    return val!=null && val.contains(pattern);
+                };
+                return model -> {
+                    Object val = read(field, model);
+                    return val!=null && val.toString().contains(pattern);
+                };
+            case BETWEEN:
+                if(values[0]==null || values[1]==null) return NONE;
+                break;
+            default:
+                if(values[0]==null) return NONE;
+        }
+        if(type==Integer.class) return compileInteger(field, operator, values);
+        if(type==Double.class) return compileDouble(field, operator, values);
+        if(type==Timestamp.class) return compileTimestamp(field, operator, values);
+        if(TypeMap.isIntegral(type)) return compileIntegral(field, operator, values);
+        if(type==double.class || type==float.class) return compileFloating(field, operator, values);
+        if(TypeMap.isBinary(type)) return compileBinary(field, operator, values);
+        return compileTextual(field, operator, values);
+    }
+
+    private static Object read(Accessor field, Model model) { return field.get(model); }
+
+    // Numeric
+    static Double toDouble(Object value) {
+        if(value instanceof Number) return ((Number) value).doubleValue();
+        if(value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException ignored) { }
+        }
+        return null;
+    }
+    private static Predicate<Model> compileInteger(Accessor field, CompareOperator operator, Object... values) {
+        if(operator==CompareOperator.NOT_EQUAL) {
+            Double r = toDouble(values[0]);
+            if(r==null || r.isNaN()) return NONE;
+            double rval = r;
+            if(rval!=Math.rint(rval) || rval<Integer.MIN_VALUE || rval>Integer.MAX_VALUE)
+                return model -> read(field, model)!=null;
+            int excluded = (int) rval;
+            return model -> {
+                Integer val = (Integer) read(field, model);
+                return val!=null && val!=excluded;
+            };
+        }
+        long[] range = integerRange(operator, values);
+        if(range==null) return NONE;
+        long min = range[0], max = range[1];
+        return model -> {
+            Integer val = (Integer) read(field, model);
+            if(val==null) return false;
+            int v = val;
+            return v>=min && v<=max;
+        };
+    }
+    static long[] integerRange(CompareOperator operator, Object... values) {   // 等值与区间条件化为闭区间{lo, hi}，无可匹配时为null
+        Double r = toDouble(values[0]);
+        if(r==null || r.isNaN()) return null;
+        double rval = r;
+        long lo = Integer.MIN_VALUE, hi = Integer.MAX_VALUE;
+        switch (operator) {
+            case EQUAL:
+                if(rval!=Math.rint(rval)) return null;
+                lo = hi = (long) rval;
+                break;
+            case GREATER:       lo = (long) Math.floor(rval) + 1; break;
+            case GREATER_EQUAL: lo = (long) Math.ceil(rval); break;
+            case LESS:          hi = (long) Math.ceil(rval) - 1; break;
+            case LESS_EQUAL:    hi = (long) Math.floor(rval); break;
+            case BETWEEN:
+                Double r2 = toDouble(values[1]);
+                if(r2==null || r2.isNaN()) return null;
+                lo = (long) Math.ceil(rval);
+                hi = (long) Math.floor(r2);
+                break;
+            default: return null;
+        }
+        return lo>hi ? null : new long[] { lo, hi };
+    }
+    private static Predicate<Model> compileDouble(Accessor field, CompareOperator operator, Object... values) {
+        Double r = toDouble(values[0]);
+        if(r==null) return NONE;
+        double rval = r;
+        switch (operator) {
+            case EQUAL:         return model -> { Double val = (Double) read(field, model); return val!=null && val==rval; };
+            case NOT_EQUAL:     return model -> { Double val = (Double) read(field, model); return val!=null && val!=rval; };
+            case GREATER:       return model -> { Double val = (Double) read(field, model); return val!=null && val>rval; };
+            case GREATER_EQUAL: return model -> { Double val = (Double) read(field, model); return val!=null && val>=rval; };
+            case LESS:          return model -> { Double val = (Double) read(field, model); return val!=null && val<rval; };
+            case LESS_EQUAL:    return model -> { Double val = (Double) read(field, model); return val!=null && val<=rval; };
+            case BETWEEN:
+                Double r2 = toDouble(values[1]);
+                if(r2==null) return NONE;
+                double rval2 = r2;
+                return model -> {
+                    Double val = (Double) read(field, model);
+                    if(val==null) return false;
+                    double v = val;
+                    return v>=rval && v<=rval2;
+                };
+        }
+        return NONE;
+    }
+
+    // Integral：int/long/boolean及Long/Boolean
+    static Object toIntegral(Object value) {    // 精确的整数为Long，否则为Double，无法转换时为null
+        if(value instanceof Boolean) return (Boolean) value ? 1L : 0L;
+        if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if(value instanceof String) {
+            String str = ((String) value).trim();
+            if(str.equalsIgnoreCase("true")) return 1L;
+            if(str.equalsIgnoreCase("false")) return 0L;
+            try {
+                return Long.parseLong(str);
+            } catch (NumberFormatException ignored) { }
+        }
+        Double r = toDouble(value);
+        if(r==null || r.isNaN()) return null;
+        double rval = r;
+        return rval==Math.rint(rval) && rval>=-0x1p63 && rval<0x1p63 ? (Object) (long) rval : r;
+    }
+    private static Long lower(Object r, boolean inclusive) {   // 满足v>r(inclusive时v>=r)的最小long，不存在时为null
+        if(r instanceof Long) {
+            long v = (Long) r;
+            return inclusive ? (Long) v : v==Long.MAX_VALUE ? null : v + 1;
+        }
+        double b = inclusive ? Math.ceil((Double) r) : Math.floor((Double) r) + 1;
+        return b>=0x1p63 ? null : (Long) (long) b;
+    }
+    private static Long upper(Object r, boolean inclusive) {   // 满足v<r(inclusive时v<=r)的最大long，不存在时为null
+        if(r instanceof Long) {
+            long v = (Long) r;
+            return inclusive ? (Long) v : v==Long.MIN_VALUE ? null : v - 1;
+        }
+        double b = inclusive ? Math.floor((Double) r) : Math.ceil((Double) r) - 1;
+        return b<-0x1p63 ? null : (Long) (long) b;
+    }
+    static long[] integralRange(Class<?> type, CompareOperator operator, Object... values) {  // 同integerRange()，截取到字段类型的取值范围
+        long lo = Integer.MIN_VALUE, hi = Integer.MAX_VALUE;
+        if(type==long.class || type==Long.class) {
+            lo = Long.MIN_VALUE;
+            hi = Long.MAX_VALUE;
+        } else if(TypeMap.isLogical(type)) {
+            lo = 0;
+            hi = 1;
+        }
+        Object r = toIntegral(values[0]);
+        if(r==null) return null;
+        Long bound, bound2;
+        switch (operator) {
+            case EQUAL:
+                if(!(r instanceof Long)) return null;
+                lo = Math.max(lo, (Long) r);
+                hi = Math.min(hi, (Long) r);
+                break;
+            case GREATER: case GREATER_EQUAL:
+                if((bound = lower(r, operator==CompareOperator.GREATER_EQUAL))==null) return null;
+                lo = Math.max(lo, bound);
+                break;
+            case LESS: case LESS_EQUAL:
+                if((bound = upper(r, operator==CompareOperator.LESS_EQUAL))==null) return null;
+                hi = Math.min(hi, bound);
+                break;
+            case BETWEEN:
+                Object r2 = toIntegral(values[1]);
+                if(r2==null || (bound = lower(r, true))==null || (bound2 = upper(r2, true))==null) return null;
+                lo = Math.max(lo, bound);
+                hi = Math.min(hi, bound2);
+                break;
+            default: return null;
+        }
+        return lo>hi ? null : new long[] { lo, hi };
+    }
+    private static Predicate<Model> compileIntegral(Accessor field, CompareOperator operator, Object... values) {
+        Class<?> type = field.type;
+        if(operator==CompareOperator.NOT_EQUAL) {
+            Object r = toIntegral(values[0]);
+            if(r==null) return NONE;
+            if(!(r instanceof Long)) return compile(field, CompareOperator.NOT_NULL);   // 非整数，与所有值都不等
+            long excluded = (Long) r;
+            if(type.isPrimitive()) return model -> field.getLong(model)!=excluded;
+            if(type==Long.class) return model -> {
+                Long val = (Long) read(field, model);
+                return val!=null && val!=excluded;
+            };
+            return model -> {
+                Boolean val = (Boolean) read(field, model);
+                return val!=null && (val ? 1 : 0)!=excluded;
+            };
+        }
+        long[] range = integralRange(type, operator, values);
+        if(range==null) return NONE;
+        long min = range[0], max = range[1];
+        if(type.isPrimitive()) return model -> {
+            long v = field.getLong(model);
+            return v>=min && v<=max;
+        };
+        if(type==Long.class) return model -> {
+            Long val = (Long) read(field, model);
+            if(val==null) return false;
+            long v = val;
+            return v>=min && v<=max;
+        };
+        return model -> {
+            Boolean val = (Boolean) read(field, model);
+            if(val==null) return false;
+            long v = val ? 1 : 0;
+            return v>=min && v<=max;
+        };
+    }
+
+    // Floating：double/float
+    private static Double toFloating(Class<?> type, Object value) {
+        Double r = toDouble(value);
+        if(r==null || type!=float.class) return r;
+        return (double) (float) (double) r;     // float字段与右值按float比较
+    }
+    static double[] floatingRange(Class<?> type, CompareOperator operator, Object... values) {  // 等值与区间条件化为闭区间{lo, hi}，无可匹配时为null
+        Double r = toFloating(type, values[0]);
+        if(r==null || r.isNaN()) return null;
+        double rval = r, lo = Double.NEGATIVE_INFINITY, hi = Double.POSITIVE_INFINITY;
+        switch (operator) {
+            case EQUAL:         lo = hi = rval; break;
+            case GREATER:       if(rval==Double.POSITIVE_INFINITY) return null; lo = Math.nextUp(rval); break;
+            case GREATER_EQUAL: lo = rval; break;
+            case LESS:          if(rval==Double.NEGATIVE_INFINITY) return null; hi = Math.nextDown(rval); break;
+            case LESS_EQUAL:    hi = rval; break;
+            case BETWEEN:
+                Double r2 = toFloating(type, values[1]);
+                if(r2==null || r2.isNaN()) return null;
+                lo = rval;
+                hi = r2;
+                break;
+            default: return null;
+        }
+        return lo>hi ? null : new double[] { lo, hi };
+    }
+    private static Predicate<Model> compileFloating(Accessor field, CompareOperator operator, Object... values) {
+        if(operator==CompareOperator.NOT_EQUAL) {
+            Double r = toFloating(field.type, values[0]);
+            if(r==null) return NONE;
+            double excluded = r;
+            return model -> field.getDouble(model)!=excluded;
+        }
+        double[] range = floatingRange(field.type, operator, values);
+        if(range==null) return NONE;
+        double min = range[0], max = range[1];
+        return model -> {
+            double v = field.getDouble(model);
+            return v>=min && v<=max;
+        };
+    }
+
+    // Temporal
+    static Long toMillis(Object value) {
+        if(value instanceof Date) return ((Date) value).getTime();
+        if(value instanceof Number) return ((Number) value).longValue();
+        if(value instanceof String) {
+            try {
+                return Timestamp.valueOf((String) value).getTime();
+            } catch (IllegalArgumentException e) {
+                try {
+                    return DateFormat.getInstance().parse((String) value).getTime();
+                } catch (ParseException ignored) { }
+            }
+        }
+        return null;
+    }
+    private static Predicate<Model> compileTimestamp(Accessor field, CompareOperator operator, Object... values) {
+        if(operator==CompareOperator.NOT_EQUAL) {
+            Long r = toMillis(values[0]);
+            if(r==null) return NONE;
+            long rval = r;
+            return model -> {
+                Timestamp val = (Timestamp) read(field, model);
+                return val!=null && val.getTime()!=rval;
+            };
+        }
+        long[] range = timestampRange(operator, values);
+        if(range==null) return NONE;
+        long min = range[0], max = range[1];
+        return model -> {
+            Timestamp val = (Timestamp) read(field, model);
+            if(val==null) return false;
+            long v = val.getTime();
+            return v>=min && v<=max;
+        };
+    }
+    static long[] timestampRange(CompareOperator operator, Object... values) {     // 同integerRange()，单位为毫秒
+        Long r = toMillis(values[0]);
+        if(r==null) return null;
+        long rval = r;
+        long lo = Long.MIN_VALUE, hi = Long.MAX_VALUE;
+        switch (operator) {
+            case EQUAL:         lo = hi = rval; break;
+            case GREATER:       if(rval==Long.MAX_VALUE) return null; lo = rval + 1; break;
+            case GREATER_EQUAL: lo = rval; break;
+            case LESS:          if(rval==Long.MIN_VALUE) return null; hi = rval - 1; break;
+            case LESS_EQUAL:    hi = rval; break;
+            case BETWEEN:
+                Long r2 = toMillis(values[1]);
+                if(r2==null) return null;
+                lo = rval;
+                hi = r2;
+                break;
+            default: return null;
+        }
+        return lo>hi ? null : new long[] { lo, hi };
+    }
+
+    // Binary：byte[]，只比较内容是否相同
+    private static Predicate<Model> compileBinary(Accessor field, CompareOperator operator, Object... values) {
+        if(!(values[0] instanceof byte[])) return NONE;
+        byte[] rval = ((byte[]) values[0]).clone();
+        switch (operator) {
+            case EQUAL:     return model -> Arrays.equals((byte[]) read(field, model), rval);
+            case NOT_EQUAL: return model -> {
+                byte[] val = (byte[]) read(field, model);
+                return val!=null && !Arrays.equals(val, rval);
+            };
+        }
+        return NONE;
+    }
+
+    // Textual
+    private static Predicate<Model> compileTextual(Accessor field, CompareOperator operator, Object... values) {
+        String rval = values[0].toString();
+        if(field.type==UUID.class && (operator==CompareOperator.EQUAL || operator==CompareOperator.NOT_EQUAL)) {
+            UUID uuid;
+            try {
+                uuid = values[0] instanceof UUID ? (UUID) values[0] : UUID.fromString(rval);
+            } catch (IllegalArgumentException e) {
+                return operator==CompareOperator.EQUAL ? NONE : model -> read(field, model)!=null;
+            }
+            if(operator==CompareOperator.EQUAL) return model -> uuid.equals(read(field, model));
+            return model -> {
+                Object val = read(field, model);
+                return val!=null && !uuid.equals(val);
+            };
+        }
+        switch (operator) {
+            case EQUAL:         return model -> { Object val = read(field, model); return val!=null && rval.equals(val.toString()); };
+            case NOT_EQUAL:     return model -> { Object val = read(field, model); return val!=null && !rval.equals(val.toString()); };
+            case GREATER:       return model -> { Object val = read(field, model); return val!=null && val.toString().compareTo(rval)>0; };
+            case GREATER_EQUAL: return model -> { Object val = read(field, model); return val!=null && val.toString().compareTo(rval)>=0; };
+            case LESS:          return model -> { Object val = read(field, model); return val!=null && val.toString().compareTo(rval)<0; };
+            case LESS_EQUAL:    return model -> { Object val = read(field, model); return val!=null && val.toString().compareTo(rval)<=0; };
+            case BETWEEN:
+                String rval2 = values[1].toString();
+                return model -> {
+                    Object val = read(field, model);
+                    if(val==null) return false;
+                    String v = val.toString();
+                    return v.compareTo(rval)>=0 && v.compareTo(rval2)<=0;
+                };
+        }
+        return NONE;
+    }
+
+}
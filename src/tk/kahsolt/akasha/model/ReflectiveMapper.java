@@ -0,0 +1,91 @@
+package tk.kahsolt.akasha.model;
+
+import tk.kahsolt.akasha.db.ColumnReader;
+import tk.kahsolt.sqlbuilder.sql.Table;
+
+import java.lang.reflect.Field;
+import java.sql.*;
+import java.util.List;
+import java.util.UUID;
+
+public class ReflectiveMapper<T extends Model> extends ModelMapper<T> {
+
+    /*
+     *  未生成<模型名>_Mapper时的后备映射器，基于反射与Accessor
+     *    各字段的列读取器由SQLEngine.reader()在构建时选定；原始类型的字段经Accessor的不装箱存取直接读写
+     *    紧凑编码的字段(FieldEntry.compact())由ModelMapper.compactReader()读、按16字节/毫秒写
+     */
+
+    private final Class<T> clazz;
+    private final Field[] fields;
+    private final Accessor[] accessors;
+    private final ColumnReader[] readers;
+    private final boolean[] compact;
+    private final String[] columns;
+
+    public ReflectiveMapper(Class<T> clazz, List<Field> fields, Accessor[] accessors, ColumnReader[] readers) {
+        this.clazz = clazz;
+        this.fields = fields.toArray(new Field[fields.size()]);
+        this.accessors = accessors;
+        this.readers = readers;
+        this.columns = new String[accessors.length];
+        this.compact = new boolean[accessors.length];
+        for (int i = 0; i < accessors.length; i++) {
+            columns[i] = accessors[i].name;
+            compact[i] = TypeMap.isCompact(this.fields[i]);
+        }
+    }
+
+    @Override
+    public String[] columns() { return columns.clone(); }
+    @Override
+    public T create() {
+        try {
+            return clazz.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(String.format("Model '%s' needs a public no-arg constructor.", clazz.getSimpleName()), e);
+        }
+    }
+    @Override
+    public void read(T model, ResultSet rs, int[] indexes) throws SQLException {
+        for (int i = 0; i < accessors.length; i++) {
+            Class<?> type = accessors[i].type;
+            if(!type.isPrimitive()) {
+                if(readers[i]!=null) accessors[i].set(model, readers[i].read(rs, indexes[i]));
+            } else if(type==boolean.class) accessors[i].setLong(model, rs.getBoolean(indexes[i]) ? 1 : 0);
+            else if(type==float.class || type==double.class) accessors[i].setDouble(model, rs.getDouble(indexes[i]));
+            else accessors[i].setLong(model, rs.getLong(indexes[i]));
+        }
+    }
+    @Override
+    public void bind(T model, PreparedStatement ps, int offset) throws SQLException {
+        for (int i = 0; i < accessors.length; i++) bindField(model, i, ps, offset + i);
+    }
+    @Override
+    public void bindField(T model, int index, PreparedStatement ps, int parameter) throws SQLException {
+        Accessor accessor = accessors[index];
+        if(accessor.type.isPrimitive()) {
+            if(accessor.type==boolean.class) ps.setBoolean(parameter, accessor.getLong(model)!=0);
+            else if(accessor.type==float.class) ps.setFloat(parameter, (float) accessor.getDouble(model));
+            else if(accessor.type==double.class) ps.setDouble(parameter, accessor.getDouble(model));
+            else ps.setLong(parameter, accessor.getLong(model));
+            return;
+        }
+        Object val = accessor.get(model);
+        if(compact[index]) {
+            if(accessor.type==UUID.class) writeCompactUUID(ps, parameter, (UUID) val);
+            else writeCompactTimestamp(ps, parameter, (Timestamp) val);
+            return;
+        }
+        if(val instanceof UUID) val = val.toString();   // CHAR(36)列，以字符串上传
+        else if(val instanceof LazyText) val = ((LazyText) val).get();
+        ps.setObject(parameter, val);
+    }
+    @Override
+    public Table.Column define(int index, Table table) { return Model.defineColumn(fields[index], table); }
+    @Override
+    public Object get(T model, int index) { return accessors[index].get(model); }
+    @Override
+    public void set(T model, int index, Object value) { accessors[index].set(model, value); }
+
+}
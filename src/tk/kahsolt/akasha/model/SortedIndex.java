@@ -0,0 +1,63 @@
+package tk.kahsolt.akasha.model;
+
+import tk.kahsolt.akasha.model.Manager.CompareOperator;
+
+import java.util.HashSet;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+class SortedIndex extends Index {
+
+    /*
+     *  有序索引(跳表)，服务于filterGreater/GreaterEqual/Less/LessEqual/Between的子区间查找
+     *    仅支持单字段，且字段类型须为数值/Timestamp/String(见TypeMap.isSortable())
+     */
+
+    SortedIndex(Accessor field) { super(new Accessor[] { field }, new ConcurrentSkipListMap<>()); }
+
+    /*
+     *  查找区间内的模型，lower/upper为null表示该侧无界
+     *    边界值会被转换为字段类型，无法转换时返回空集
+     */
+    HashSet<Model> range(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        HashSet<Model> results = new HashSet<>();
+        Class<?> type = fields[0].type;
+        Object lo = null, hi = null;
+        if(lower!=null) {
+            if(TypeMap.isIntegral(type)) {     // 整型边界化为闭区间，与Filter的谓词一致
+                long[] range = Predicates.integralRange(type, lowerInclusive ? CompareOperator.GREATER_EQUAL : CompareOperator.GREATER, lower);
+                if(range==null) return results;
+                lo = type==long.class || type==Long.class ? (Object) range[0] : (Object) (int) range[0];
+                lowerInclusive = true;
+            } else {
+                lo = normalize(type, lower);
+                if(lo==NO_MATCH) return results;
+            }
+        }
+        if(upper!=null) {
+            if(TypeMap.isIntegral(type)) {
+                long[] range = Predicates.integralRange(type, upperInclusive ? CompareOperator.LESS_EQUAL : CompareOperator.LESS, upper);
+                if(range==null) return results;
+                hi = type==long.class || type==Long.class ? (Object) range[1] : (Object) (int) range[1];
+                upperInclusive = true;
+            } else {
+                hi = normalize(type, upper);
+                if(hi==NO_MATCH) return results;
+            }
+        }
+        @SuppressWarnings("unchecked")
+        NavigableMap<Object, Object> tree = (NavigableMap<Object, Object>) buckets;
+        NavigableMap<Object, Object> sub;
+        if(lo!=null && hi!=null) {
+            @SuppressWarnings("unchecked")
+            int cmp = ((Comparable<Object>) lo).compareTo(hi);
+            if(cmp>0 || cmp==0 && !(lowerInclusive && upperInclusive)) return results;
+            sub = tree.subMap(lo, lowerInclusive, hi, upperInclusive);
+        } else if(lo!=null) sub = tree.tailMap(lo, lowerInclusive);
+        else if(hi!=null) sub = tree.headMap(hi, upperInclusive);
+        else sub = tree;
+        collect(sub.values(), results);
+        return results;
+    }
+
+}
@@ -0,0 +1,288 @@
+package tk.kahsolt.akasha.model;
+
+import java.util.*;
+
+final class Store extends AbstractCollection<Model> {
+
+    /*
+     *  模型的缓存集合：写操作加锁，读操作无锁
+     *    1.内部为不可变的32叉前缀树(持久化向量)，add()/remove()复制一条路径后整体发布，代价O(log32 n)
+     *    2.snapshot()取得当前的一致快照，遍历期间不受并发增删影响；Filter的全集扫描即基于快照
+     *    3.remove()以末尾的模型填补空位，每个模型在Model.slot中记录自己的下标
+     *    4.若挂有列式副本(Columns)，在发布新快照之前同步维护，使读者所见的列不短于快照
+     *    5.另以开放寻址的int表按id查找已落库的模型(Ids)，无装箱的键与链表节点；尚无id的模型不在其中
+     */
+
+    private volatile Snapshot current;
+    private final Ids ids = new Ids();
+    private Columns columns;        // 由本对象锁保护
+
+    Store(Collection<? extends Model> models) {
+        Model[] array = models.toArray(new Model[models.size()]);
+        for (int i = 0; i < array.length; i++) {
+            array[i].slot = i;
+            if(array[i].id()!=null) ids.put(array[i].id(), array[i]);
+        }
+        current = Snapshot.of(array);
+    }
+
+    Snapshot snapshot() { return current; }
+    synchronized void attach(Columns columns) {
+        Snapshot snapshot = current;
+        for (int i = snapshot.size - 1; i >= 0; i--) columns.set(i, snapshot.get(i));   // 自末尾写起，一次扩容到位
+        this.columns = columns;
+    }
+    Model get(int id) {     // 先无锁探查，未命中时加锁再查一次，以免错过并发的改动
+        Model model = ids.get(id);
+        if(model!=null) return model;
+        synchronized (this) {
+            return ids.get(id);
+        }
+    }
+    synchronized int identified() { return ids.size; }     // 已落库的模型数
+    synchronized void identify(Model model) {   // 已在缓存中的模型取得id之后登记
+        if(model.slot>=0 && model.id()!=null) ids.put(model.id(), model);
+    }
+    synchronized void unidentify(Model model) {     // 插入回滚，id作废之前注销
+        if(model.id()!=null) ids.remove(model.id(), model);
+    }
+    synchronized void update(Model model) {     // 模型保存后刷新其列值
+        if(columns!=null && model.slot>=0) columns.set(model.slot, model);
+    }
+
+    @Override
+    public int size() { return current.size; }
+    @Override
+    public Iterator<Model> iterator() { return current.iterator(); }
+    @Override
+    public boolean contains(Object o) { return o instanceof Model && ((Model) o).slot>=0; }
+    @Override
+    public synchronized boolean add(Model model) {
+        if(model.slot>=0) return false;
+        Snapshot snapshot = current;
+        model.slot = snapshot.size;
+        if(model.id()!=null) ids.put(model.id(), model);
+        if(columns!=null) columns.set(snapshot.size, model);
+        current = snapshot.push(model);
+        return true;
+    }
+    @Override
+    public synchronized boolean remove(Object o) {
+        if(!contains(o)) return false;
+        Model model = (Model) o;
+        Snapshot snapshot = current;
+        int index = model.slot, last = snapshot.size - 1;
+        Model moved = snapshot.get(last);
+        moved.slot = index;         // 先改下标，列扫描据此识别已移走的模型
+        model.slot = -1;
+        if(model.id()!=null) ids.remove(model.id(), model);
+        if(columns!=null) columns.move(last, index);
+        current = snapshot.set(index, moved).pop();
+        return true;
+    }
+    @Override
+    public synchronized void clear() {
+        for (Model model : current) model.slot = -1;
+        current = Snapshot.EMPTY;
+        ids.clear();
+    }
+
+    static final class Ids {
+
+        /*
+         *  id到模型的开放寻址表：键为int[]，值为并行的Object[]，线性探查
+         *    1.删除留下墓碑而不移动其它项，无锁的读者沿探查链不会漏掉全程都在表中的项
+         *    2.命中的模型须其id仍相同且仍在缓存中(slot>=0)，否则视为未命中
+         *    3.已用(含墓碑)超过容量的3/4时重建，容量取使存活项不过半的2的幂；写者由Store加锁串行
+         */
+
+        private static final Object DELETED = new Object();
+
+        private static final class Table {
+            final int[] keys;
+            final Object[] values;  // null为空位，DELETED为墓碑
+            Table(int capacity) {
+                keys = new int[capacity];
+                values = new Object[capacity];
+            }
+        }
+
+        private volatile Table table = new Table(16);
+        private int size, used;
+
+        private static int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        Model get(int id) {
+            Table table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+                Object value = table.values[i];
+                if(value==null) return null;
+                if(value!=DELETED && table.keys[i]==id) {
+                    Model model = (Model) value;
+                    Integer current = model.id();
+                    return current!=null && current==id && model.slot>=0 ? model : null;
+                }
+            }
+        }
+        void put(int id, Model model) {
+            Table table = this.table;
+            int mask = table.keys.length - 1, free = -1;
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+                Object value = table.values[i];
+                if(value==null) {
+                    if(free<0) {
+                        free = i;
+                        used++;
+                    }
+                    break;
+                }
+                if(value==DELETED) {
+                    if(free<0) free = i;
+                } else if(table.keys[i]==id) {
+                    table.values[i] = model;
+                    return;
+                }
+            }
+            table.values[free] = model;    // 先写值再写键，读者据模型自身的id复核
+            table.keys[free] = id;
+            size++;
+            if(used>table.keys.length - (table.keys.length >> 2)) rehash();
+        }
+        void remove(int id, Model model) {
+            Table table = this.table;
+            int mask = table.keys.length - 1;
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+                Object value = table.values[i];
+                if(value==null) return;
+                if(value==model && table.keys[i]==id) {
+                    table.values[i] = DELETED;
+                    size--;
+                    return;
+                }
+            }
+        }
+        void clear() {
+            table = new Table(16);
+            size = used = 0;
+        }
+        private void rehash() {
+            Table old = table;
+            int capacity = old.keys.length;
+            while (size>capacity >> 1) capacity <<= 1;
+            Table table = new Table(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < old.keys.length; j++) {
+                Object value = old.values[j];
+                if(value==null || value==DELETED) continue;
+                int i = hash(old.keys[j]) & mask;
+                while (table.values[i]!=null) i = (i + 1) & mask;
+                table.keys[i] = old.keys[j];
+                table.values[i] = value;
+            }
+            this.table = table;
+            used = size;
+        }
+
+    }
+
+    static final class Snapshot extends AbstractSet<Model> {
+
+        private static final int BITS = 5;
+        private static final int WIDTH = 1 << BITS;
+        private static final int MASK = WIDTH - 1;
+        static final Snapshot EMPTY = new Snapshot(new Object[WIDTH], 0, 0);
+
+        private final Object[] root;
+        private final int shift;        // 根节点所在层的位移，为0时根即叶
+        private final int size;
+
+        private Snapshot(Object[] root, int shift, int size) {
+            this.root = root;
+            this.shift = shift;
+            this.size = size;
+        }
+        private static Snapshot of(Model[] models) {   // 自底向上整体构建，供模型化时批量载入
+            if(models.length==0) return EMPTY;
+            Object[][] nodes = new Object[(models.length + MASK) >>> BITS][];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new Object[WIDTH];
+                System.arraycopy(models, i << BITS, nodes[i], 0, Math.min(WIDTH, models.length - (i << BITS)));
+            }
+            int shift = 0;
+            while (nodes.length>1) {
+                Object[][] parents = new Object[(nodes.length + MASK) >>> BITS][];
+                for (int i = 0; i < parents.length; i++) {
+                    parents[i] = new Object[WIDTH];
+                    System.arraycopy(nodes, i << BITS, parents[i], 0, Math.min(WIDTH, nodes.length - (i << BITS)));
+                }
+                nodes = parents;
+                shift += BITS;
+            }
+            return new Snapshot(nodes[0], shift, models.length);
+        }
+
+        private Object[] leaf(int index) {
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) node = (Object[]) node[(index >>> level) & MASK];
+            return node;
+        }
+        Model get(int index) { return (Model) leaf(index)[index & MASK]; }
+
+        // 路径复制，中途缺失的节点新建
+        private static Object[] assoc(int level, Object[] node, int index, Model model) {
+            Object[] copy = node==null ? new Object[WIDTH] : node.clone();
+            if(level==0) copy[index & MASK] = model;
+            else {
+                int sub = (index >>> level) & MASK;
+                copy[sub] = assoc(level - BITS, (Object[]) copy[sub], index, model);
+            }
+            return copy;
+        }
+        private Snapshot set(int index, Model model) { return new Snapshot(assoc(shift, root, index, model), shift, size); }
+        private Snapshot push(Model model) {
+            if(size==1<<(shift + BITS)) {   // 满，加高一层
+                Object[] root = new Object[WIDTH];
+                root[0] = this.root;
+                return new Snapshot(assoc(shift + BITS, root, size, model), shift + BITS, size + 1);
+            }
+            return new Snapshot(assoc(shift, root, size, model), shift, size + 1);
+        }
+        private Snapshot pop() {
+            if(size==1) return EMPTY;
+            Object[] root = assoc(shift, this.root, size - 1, null);
+            if(shift>0 && size - 1<=1<<shift) return new Snapshot((Object[]) root[0], shift - BITS, size - 1);    // 降低一层
+            return new Snapshot(root, shift, size - 1);
+        }
+
+        @Override
+        public int size() { return size; }
+        @Override
+        public boolean contains(Object o) {
+            if(!(o instanceof Model)) return false;
+            int index = ((Model) o).slot;
+            if(index>=0 && index<size && get(index)==o) return true;
+            return super.contains(o);   // 快照之后被移动过下标的
+        }
+        @Override
+        public Iterator<Model> iterator() {
+            return new Iterator<Model>() {
+                private int index;
+                private Object[] leaf;
+                @Override
+                public boolean hasNext() { return index<size; }
+                @Override
+                public Model next() {
+                    if(index>=size) throw new NoSuchElementException();
+                    if((index & MASK)==0 || leaf==null) leaf = leaf(index);
+                    return (Model) leaf[index++ & MASK];
+                }
+            };
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package tk.kahsolt.akasha.model;
 
+import java.lang.reflect.Field;
 import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.UUID;
@@ -11,23 +12,61 @@ public class TypeMap {
             // Numeric
             put(Integer.class, "INTEGER");
             put(Double.class, "DOUBLE");
+            put(Long.class, "BIGINT");
+            put(int.class, "INTEGER");          // 原始类型的字段不为null，库中的NULL读作0/false
+            put(long.class, "BIGINT");
+            put(double.class, "DOUBLE");
+            put(float.class, "FLOAT");
+            // Logical
+            put(Boolean.class, "BOOLEAN");
+            put(boolean.class, "BOOLEAN");
             // Textual
             put(String.class, "VARCHAR");       // 可设置length()从而改变映射为CHAR/TEXT
             put(UUID.class, "CHAR(36)");
+            put(LazyText.class, "TEXT");        // 延迟载入，见LazyText
             // Temporal
             put(Timestamp.class, "TIMESTAMP");
+            // Binary
+            put(byte[].class, "BLOB");
         }
     };
 
     public static String lookup(Class<?> clazz) {
         return type_map.get(clazz);
     }
+    public static String lookup(String className) {    // 供编译期的ModelProcessor按类名查找
+        for (Class<?> clazz : type_map.keySet()) if(clazz.getTypeName().equals(className)) return type_map.get(clazz);
+        return null;
+    }
+    public static String compactType(String className) {      // FieldEntry.compact()时的列类型，不支持的类型为null
+        if(className.equals(UUID.class.getTypeName())) return "BINARY(16)";
+        if(className.equals(Timestamp.class.getTypeName())) return "BIGINT";
+        return null;
+    }
+    public static boolean isCompact(Field field) {
+        FieldEntry fe = field.getDeclaredAnnotation(FieldEntry.class);
+        return fe!=null && fe.compact() && compactType(field.getType().getTypeName())!=null;
+    }
+    public static String columnType(String type, int length) {    // 按length将VARCHAR细化为VARCHAR(n)/CHAR(n)/TEXT
+        if(!"VARCHAR".equals(type)) return type;
+        if(length>0) return String.format("VARCHAR(%d)", length);
+        else if(length==0) return "TEXT";
+        else return String.format("CHAR(%d)", -length);
+    }
     public static boolean isNumeric(Class<?> clazz) {
-        return clazz==Integer.class || clazz==Double.class;
+        return clazz==Integer.class || clazz==Double.class || clazz==Long.class || clazz==Float.class
+                || clazz==int.class || clazz==long.class || clazz==double.class || clazz==float.class;
+    }
+    public static boolean isIntegral(Class<?> clazz) {   // 在long上比较的类型，boolean为0/1
+        return clazz==Integer.class || clazz==Long.class || clazz==Boolean.class
+                || clazz==int.class || clazz==long.class || clazz==boolean.class;
     }
+    public static boolean isLogical(Class<?> clazz) { return clazz==Boolean.class || clazz==boolean.class; }
     public static boolean isTextual(Class<?> clazz) { return clazz==String.class || clazz==UUID.class; }
     public static boolean isTemporal(Class<?> clazz) {
         return clazz==Timestamp.class;
     }
+    public static boolean isBinary(Class<?> clazz) { return clazz==byte[].class; }
+    public static boolean isSortable(Class<?> clazz) { return isNumeric(clazz) || isTemporal(clazz) || clazz==String.class; }
 
 }
@@ -0,0 +1,243 @@
+package tk.kahsolt.akasha.processor;
+
+import tk.kahsolt.akasha.model.FieldEntry;
+import tk.kahsolt.akasha.model.TypeMap;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+@SupportedAnnotationTypes({"tk.kahsolt.akasha.model.FieldEntry", "tk.kahsolt.akasha.model.ModelEntry", "tk.kahsolt.akasha.model.ManagerEntry"})
+public class ModelProcessor extends AbstractProcessor {
+
+    /*
+     *  编译期注解处理器：为每个模型类生成<模型名>_Mapper(继承ModelMapper)，包含
+     *    1.ResultSet行映射read()，供Model.modelize()使用
+     *    2.PreparedStatement参数绑定bind()，供insert()/update()使用
+     *    3.建表/加列的列定义define()，供sqlize()使用
+     *    4.按下标的字段存取get()/set()
+     *  只为顶层、非抽象、字段均非private的Model子类生成，否则运行时退回到反射
+     *  Akasha.jar在classpath上时javac会通过META-INF/services自动发现本处理器
+     *  Akasha的三个注解由本处理器认领，不再交给其他处理器
+     */
+
+    private static final String MODEL = "tk.kahsolt.akasha.model.Model";
+    private static final String LAZY_TEXT = "tk.kahsolt.akasha.model.LazyText";
+
+    private HashSet<String> generated = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        LinkedHashMap<TypeElement, ArrayList<VariableElement>> models = new LinkedHashMap<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(FieldEntry.class)) {
+            if(element.getKind()!=ElementKind.FIELD) continue;
+            TypeElement owner = (TypeElement) element.getEnclosingElement();
+            if(owner.getQualifiedName().contentEquals(MODEL)) continue;     // 默认字段由Model自行处理
+            models.computeIfAbsent(owner, k -> new ArrayList<>());
+        }
+        for (TypeElement owner : models.keySet()) {     // 按声明顺序收集字段
+            for (VariableElement field : ElementFilter.fieldsIn(owner.getEnclosedElements()))
+                if(field.getAnnotation(FieldEntry.class)!=null) models.get(owner).add(field);
+        }
+        for (Map.Entry<TypeElement, ArrayList<VariableElement>> entry : models.entrySet()) {
+            TypeElement owner = entry.getKey();
+            String name = owner.getQualifiedName().toString();
+            if(generated.contains(name) || !accept(owner, entry.getValue())) continue;
+            try {
+                generate(owner, entry.getValue());
+                generated.add(name);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Failed generating mapper: " + e.getMessage(), owner);
+            }
+        }
+        return true;    // 认领本处理器支持的注解
+    }
+
+    private void note(String message, Element element) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                message + ", Akasha will fallback to reflection.", element);
+    }
+    private boolean accept(TypeElement owner, List<VariableElement> fields) {
+        TypeElement model = processingEnv.getElementUtils().getTypeElement(MODEL);
+        if(model==null || !processingEnv.getTypeUtils().isSubtype(owner.asType(), model.asType())) return false;
+        if(owner.getNestingKind()!=NestingKind.TOP_LEVEL || owner.getModifiers().contains(Modifier.ABSTRACT)) {
+            note("Only top-level concrete models get a generated mapper", owner);
+            return false;
+        }
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(owner.getEnclosedElements());
+        boolean constructible = false;
+        for (ExecutableElement constructor : constructors)
+            if(constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+                constructible = true;
+        if(!constructible) {
+            note("No accessible no-arg constructor", owner);
+            return false;
+        }
+        for (VariableElement field : fields) {
+            if(field.getModifiers().contains(Modifier.PRIVATE) || field.getModifiers().contains(Modifier.STATIC)) {
+                note(String.format("Field '%s' is private or static", field.getSimpleName()), field);
+                return false;
+            }
+            if(TypeMap.lookup(typeName(field.asType()))==null) {
+                note(String.format("Type of field '%s' is not supported, see TypeMap", field.getSimpleName()), field);
+                return false;
+            }
+        }
+        return true;
+    }
+    private String typeName(TypeMirror type) {
+        Element element = processingEnv.getTypeUtils().asElement(type);
+        return element instanceof TypeElement ? ((TypeElement) element).getQualifiedName().toString() : type.toString();
+    }
+    private static String literal(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:   sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private boolean compact(VariableElement field) {    // 见FieldEntry.compact()
+        return field.getAnnotation(FieldEntry.class).compact() && TypeMap.compactType(typeName(field.asType()))!=null;
+    }
+    private String writer(VariableElement field, String parameter) {
+        String writer;
+        switch ((compact(field) ? "compact " : "") + typeName(field.asType())) {
+            case "java.lang.Integer":
+            case "int":                 writer = "writeInteger"; break;     // 原始类型走不装箱的重载
+            case "java.lang.Double":
+            case "double":              writer = "writeDouble"; break;
+            case "java.lang.Long":
+            case "long":                writer = "writeLong"; break;
+            case "java.lang.Boolean":
+            case "boolean":             writer = "writeBoolean"; break;
+            case "float":               writer = "writeFloat"; break;
+            case "byte[]":              writer = "writeBytes"; break;
+            case "java.util.UUID":      writer = "writeUUID"; break;
+            case "java.sql.Timestamp":  writer = "writeTimestamp"; break;
+            case "compact java.util.UUID":      writer = "writeCompactUUID"; break;
+            case "compact java.sql.Timestamp":  writer = "writeCompactTimestamp"; break;
+            case LAZY_TEXT:             writer = "writeLazyText"; break;
+            default:                    writer = "writeString";
+        }
+        return String.format("%s(ps, %s, model.%s)", writer, parameter, field.getSimpleName());
+    }
+
+    private void generate(TypeElement owner, List<VariableElement> fields) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(owner).getQualifiedName().toString();
+        String model = owner.getSimpleName().toString();
+        String mapper = model + "_Mapper";
+        StringBuilder src = new StringBuilder();
+        if(!pkg.isEmpty()) src.append("package ").append(pkg).append(";\n\n");
+        src.append("import tk.kahsolt.akasha.model.ModelMapper;\n");
+        src.append("import tk.kahsolt.sqlbuilder.sql.Table;\n\n");
+        src.append("import java.sql.*;\n\n");
+        src.append("// Generated by tk.kahsolt.akasha.processor.ModelProcessor, do not edit.\n");
+        src.append("public final class ").append(mapper).append(" extends ModelMapper<").append(model).append("> {\n\n");
+
+        // columns
+        src.append("    private static final String[] COLUMNS = {");
+        for (int i = 0; i < fields.size(); i++) src.append(i==0 ? " " : ", ").append(literal(fields.get(i).getSimpleName().toString()));
+        src.append(" };\n\n");
+        src.append("    @Override\n    public String[] columns() { return COLUMNS.clone(); }\n");
+        src.append("    @Override\n    public ").append(model).append(" create() { return new ").append(model).append("(); }\n");
+
+        // read
+        src.append("    @Override\n    public void read(").append(model).append(" model, ResultSet rs, int[] indexes) throws SQLException {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            String name = fields.get(i).getSimpleName().toString();
+            String type = typeName(fields.get(i).asType());
+            String column = "indexes[" + i + "]";
+            String reader;
+            if(type.equals(LAZY_TEXT)) continue;    // 延迟列由Model挂上未载入的LazyText
+            switch ((compact(fields.get(i)) ? "compact " : "") + type) {
+                case "java.lang.Integer":   reader = "readInteger(rs, " + column + ")"; break;
+                case "java.lang.Double":    reader = "readDouble(rs, " + column + ")"; break;
+                case "java.lang.Long":      reader = "readLong(rs, " + column + ")"; break;
+                case "java.lang.Boolean":   reader = "readBoolean(rs, " + column + ")"; break;
+                case "int":                 reader = "rs.getInt(" + column + ")"; break;   // NULL读作0/false
+                case "long":                reader = "rs.getLong(" + column + ")"; break;
+                case "double":              reader = "rs.getDouble(" + column + ")"; break;
+                case "float":               reader = "rs.getFloat(" + column + ")"; break;
+                case "boolean":             reader = "rs.getBoolean(" + column + ")"; break;
+                case "byte[]":              reader = "rs.getBytes(" + column + ")"; break;
+                case "java.util.UUID":      reader = "readUUID(rs, " + column + ")"; break;
+                case "java.sql.Timestamp":  reader = "rs.getTimestamp(" + column + ")"; break;
+                case "compact java.util.UUID":      reader = "readCompactUUID(rs, " + column + ")"; break;
+                case "compact java.sql.Timestamp":  reader = "readCompactTimestamp(rs, " + column + ")"; break;
+                default:                    reader = "rs.getString(" + column + ")";
+            }
+            src.append("        model.").append(name).append(" = ").append(reader).append(";\n");
+        }
+        src.append("    }\n");
+
+        // bind
+        src.append("    @Override\n    public void bind(").append(model).append(" model, PreparedStatement ps, int offset) throws SQLException {\n");
+        for (int i = 0; i < fields.size(); i++)
+            src.append("        ").append(writer(fields.get(i), "offset + " + i)).append(";\n");
+        src.append("    }\n");
+        src.append("    @Override\n    public void bindField(").append(model).append(" model, int index, PreparedStatement ps, int parameter) throws SQLException {\n        switch (index) {\n");
+        for (int i = 0; i < fields.size(); i++)
+            src.append("            case ").append(i).append(": ").append(writer(fields.get(i), "parameter")).append("; return;\n");
+        src.append("            default: throw new IndexOutOfBoundsException(String.valueOf(index));\n        }\n    }\n");
+
+        // define
+        src.append("    @Override\n    public Table.Column define(int index, Table table) {\n        switch (index) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            VariableElement field = fields.get(i);
+            FieldEntry fe = field.getAnnotation(FieldEntry.class);
+            String type = compact(field) ? TypeMap.compactType(typeName(field.asType()))
+                    : TypeMap.columnType(TypeMap.lookup(typeName(field.asType())), fe.length());
+            src.append("            case ").append(i).append(": return column(table, ")
+                    .append(literal(field.getSimpleName().toString())).append(", ")
+                    .append(literal(type)).append(", ")
+                    .append(literal(fe.defaultValue())).append(", ")
+                    .append(fe.unique()).append(", ").append(fe.notNull()).append(", ").append(fe.identity()).append(", ")
+                    .append(fe.initSetCurrent()).append(", ").append(fe.updateSetCurrent()).append(");\n");
+        }
+        src.append("            default: throw new IndexOutOfBoundsException(String.valueOf(index));\n        }\n    }\n");
+
+        // get & set
+        src.append("    @Override\n    public Object get(").append(model).append(" model, int index) {\n        switch (index) {\n");
+        for (int i = 0; i < fields.size(); i++)
+            src.append("            case ").append(i).append(": return model.").append(fields.get(i).getSimpleName()).append(";\n");
+        src.append("            default: throw new IndexOutOfBoundsException(String.valueOf(index));\n        }\n    }\n");
+        src.append("    @Override\n    public void set(").append(model).append(" model, int index, Object value) {\n        switch (index) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            VariableElement field = fields.get(i);
+            src.append("            case ").append(i).append(": model.").append(field.getSimpleName())
+                    .append(" = (").append(typeName(field.asType())).append(") value; return;\n");
+        }
+        src.append("            default: throw new IndexOutOfBoundsException(String.valueOf(index));\n        }\n    }\n");
+
+        // typed getters
+        for (VariableElement field : fields) {
+            String name = field.getSimpleName().toString();
+            src.append("\n    public static ").append(typeName(field.asType())).append(" ").append(name)
+                    .append("(").append(model).append(" model) { return model.").append(name).append("; }");
+        }
+        src.append("\n\n}\n");
+
+        try (Writer writer = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? mapper : pkg + "." + mapper, owner).openWriter()) {
+            writer.write(src.toString());
+        }
+    }
+
+}